@@ -26,6 +26,8 @@ import com.rammelkast.polaris.net.NetServer;
 import com.rammelkast.polaris.profile.Profiler;
 import com.rammelkast.polaris.task.SchedulerManager;
 import com.rammelkast.polaris.viaversion.PolarisViaPlatform;
+import com.rammelkast.polaris.world.NoiseChunkGenerator;
+import com.rammelkast.polaris.world.SectionStorage;
 import com.rammelkast.polaris.world.World;
 
 import lombok.Getter;
@@ -33,9 +35,22 @@ import lombok.Getter;
 public final class Polaris {
 
 	// TODO config
-	public static final int WORLD_SIZE    = 16;
 	public static final int VIEW_DISTANCE = 6;
 	public static final int NETWORK_PORT  = 25565;
+	// Packets of this size and up are compressed, -1 disables compression
+	public static final int COMPRESSION_THRESHOLD = 256;
+	// Radius in chunks around spawn generated on all cores at startup, at least the view distance
+	public static final int PREGENERATION_RADIUS = VIEW_DISTANCE;
+	// Maximum amount of chunks sent to a single player per tick
+	public static final int CHUNKS_PER_TICK = 8;
+	// Heap budget for resident chunks in megabytes, idle chunks are evicted early above it
+	public static final int CHUNK_MEMORY_BUDGET = 256;
+	// Ticks a chunk without viewers stays loaded
+	public static final int CHUNK_GRACE_TICKS = 30 * TickThread.TICKS_PER_SECOND;
+	// Seed of the terrain generated for chunks that were never saved
+	public static final long WORLD_SEED = 0L;
+	// Where chunk data is kept, DIRECT keeps it off the Java heap for very large maps
+	public static final SectionStorage.Type SECTION_STORAGE = SectionStorage.Type.HEAP;
 	
 	private static final Logger LOGGER = LogManager.getLogger(Polaris.class);
 	
@@ -50,6 +65,8 @@ public final class Polaris {
 	private final SchedulerManager schedulerManager;
 	private final PolarisViaPlatform viaPlatform;
 	private final NetServer netServer;
+	@Getter
+	private final TickThread tickThread;
 	
 	private boolean running;
 	
@@ -63,7 +80,7 @@ public final class Polaris {
 		this.profiler = new Profiler();
 		
 		final long ramStart = Runtime.getRuntime().freeMemory();
-		this.world = new World("world", WORLD_SIZE);
+		this.world = new World("world", new NoiseChunkGenerator(WORLD_SEED), SECTION_STORAGE);
 		final long ramEnd = Runtime.getRuntime().freeMemory();
 		LOGGER.info("World is using " + new BigDecimal(((float) (ramStart - ramEnd) / (1024 * 1024))).setScale(1, RoundingMode.HALF_UP) + " MB of memory");
 		
@@ -73,6 +90,7 @@ public final class Polaris {
 			LOGGER.info("Running ViaVersion " + this.viaPlatform.getPluginVersion());
 		}
 		this.netServer = new NetServer(NETWORK_PORT);
+		this.tickThread = new TickThread(this.profiler, this.world, this.netServer);
 		
 		Polaris.server = this;
 	}
@@ -81,6 +99,7 @@ public final class Polaris {
 		this.profiler.start();
 		this.viaPlatform.init();
 		this.netServer.start();
+		this.tickThread.start();
 		
 		this.running = true;
 		LOGGER.info("Startup complete.");
@@ -92,7 +111,9 @@ public final class Polaris {
 		}
 		
 		this.running = false;
+		this.tickThread.shutdown();
 		this.world.destroy();
+		this.world.save();
 		this.netServer.shutdown();
 		this.profiler.stop();
 		System.gc();
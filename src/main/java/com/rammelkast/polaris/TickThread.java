@@ -0,0 +1,149 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rammelkast.polaris.net.NetClient;
+import com.rammelkast.polaris.net.NetServer;
+import com.rammelkast.polaris.profile.Profiler;
+import com.rammelkast.polaris.world.World;
+
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * The main game loop. All game state (worlds, players and their viewers) is
+ * owned by this thread; network threads only queue packets and tasks for it.
+ * <p>
+ * Every tick runs queued tasks, processes the packets each client received
+ * since the last tick, ticks the world and finally flushes every client once.
+ */
+public final class TickThread extends Thread {
+
+	public static final String NAME = "Tick Thread";
+	public static final int TICKS_PER_SECOND = 20;
+	public static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1) / TICKS_PER_SECOND;
+	/**
+	 * Ticks between two logged profiler reports, once a minute
+	 */
+	private static final int REPORT_TICKS = 60 * TICKS_PER_SECOND;
+
+	private static final Logger LOGGER = LogManager.getLogger(TickThread.class);
+
+	private final Profiler profiler;
+	private final World world;
+	private final NetServer netServer;
+	private final Queue<Runnable> tasks = PlatformDependent.newMpscQueue();
+	private volatile boolean running;
+	private long ticks;
+
+	public TickThread(final Profiler profiler, final World world, final NetServer netServer) {
+		super(NAME);
+		this.profiler = profiler;
+		this.world = world;
+		this.netServer = netServer;
+	}
+
+	@Override
+	public synchronized void start() {
+		this.running = true;
+		this.profiler.addThread(NAME);
+		super.start();
+	}
+
+	@Override
+	public void run() {
+		long nextTick = System.nanoTime();
+		while (this.running) {
+			final long start = System.nanoTime();
+			try {
+				this.tick();
+			} catch (Exception ex) {
+				LOGGER.error("Exception while ticking", ex);
+			}
+			final long duration = System.nanoTime() - start;
+			this.profiler.recordTick(duration, duration > TICK_NANOS);
+			if (++this.ticks % REPORT_TICKS == 0) {
+				LOGGER.info(this.profiler.getReport());
+			}
+
+			nextTick += TICK_NANOS;
+			final long sleep = nextTick - System.nanoTime();
+			if (sleep > 0) {
+				LockSupport.parkNanos(sleep);
+			} else {
+				// Behind schedule, do not try to catch up with a burst of ticks
+				nextTick = System.nanoTime();
+			}
+		}
+	}
+
+	private void tick() {
+		Runnable task;
+		while ((task = this.tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception ex) {
+				LOGGER.error("Exception while running task", ex);
+			}
+		}
+
+		for (final NetClient client : this.netServer.getClients()) {
+			client.processPackets();
+		}
+
+		this.world.tick();
+
+		for (final NetClient client : this.netServer.getClients()) {
+			client.flush();
+		}
+	}
+
+	/**
+	 * Runs the given task on the tick thread, at the start of the next tick.
+	 * 
+	 * @param task task to run
+	 */
+	public void execute(final Runnable task) {
+		this.tasks.offer(task);
+	}
+
+	public void shutdown() {
+		this.running = false;
+		this.profiler.removeThread(NAME);
+		try {
+			this.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Checks whether the calling thread is the tick thread.
+	 * 
+	 * @return true if called from the tick thread
+	 */
+	public static boolean isTickThread() {
+		return Thread.currentThread() instanceof TickThread;
+	}
+
+}
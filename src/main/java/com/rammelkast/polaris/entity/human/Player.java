@@ -16,15 +16,12 @@
  */
 package com.rammelkast.polaris.entity.human;
 
-import java.lang.ref.Reference;
-import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
@@ -33,6 +30,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.rammelkast.polaris.Polaris;
+import com.rammelkast.polaris.entity.Entity;
 import com.rammelkast.polaris.entity.EntityMetadata;
 import com.rammelkast.polaris.net.NetClient;
 import com.rammelkast.polaris.net.packet.Packet;
@@ -54,11 +52,16 @@ import com.rammelkast.polaris.net.packet.play.out.PacketOutSpawnPlayer;
 import com.rammelkast.polaris.net.packet.play.out.PacketOutSpawnPosition;
 import com.rammelkast.polaris.profile.Profiler;
 import com.rammelkast.polaris.util.Location;
-import com.rammelkast.polaris.util.MathUtilties;
 import com.rammelkast.polaris.world.Chunk;
 import com.rammelkast.polaris.world.World;
 
 import io.netty.util.concurrent.ScheduledFuture;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
@@ -74,7 +77,7 @@ public class Player extends HumanEntity {
 	private final NetClient client;
 	@Getter
 	private final EntityMetadata metadata = new EntityMetadata();
-	private final List<Chunk> loadedChunks = new ArrayList<Chunk>();
+	private final LongSet loadedChunks = new LongOpenHashSet();
 	private final ScheduledFuture<?> keepAliveTask;
 	private final List<Player> viewers = new CopyOnWriteArrayList<Player>();
 	
@@ -85,7 +88,17 @@ public class Player extends HumanEntity {
 	@Getter
 	@Setter
 	private String clientBrand;
-	private Reference<Chunk> chunk;
+	// Key of the chunk this player is in, only valid while indexed
+	private long chunkKey;
+	private boolean indexed;
+	// Center and radius of the chunks currently in view, a radius of -1 means none
+	private int viewCenterX, viewCenterZ, viewRadius = -1;
+	// Chunks in view that have not been sent yet, chunkQueue holds them nearest first
+	private final LongSet pendingChunks = new LongOpenHashSet();
+	private long[] chunkQueue = LongArrays.EMPTY_ARRAY;
+	private int chunkQueueIndex;
+	// Time at which the pending chunks went from empty to non-empty
+	private long viewRequestTime;
 
 	public Player(final World world, final NetClient client) {
 		super(client.getUsername(), client.getUniqueId(), GameMode.SURVIVAL, world.getSpawnPoint(), 20.0D, 20.0D);
@@ -135,6 +148,25 @@ public class Player extends HumanEntity {
 			player.removeViewer(this, false);
 		});
 		getWorld().getPlayers().remove(this);
+		Polaris.getServer().getProfiler().recordChunksQueued(-this.pendingChunks.size());
+		this.pendingChunks.clear();
+		if (this.indexed) {
+			getWorld().removeEntity(this, this.chunkKey);
+			this.indexed = false;
+		}
+		
+		for (final LongIterator iterator = this.loadedChunks.iterator(); iterator.hasNext();) {
+			getWorld().removeChunkPlayer(iterator.nextLong(), this);
+		}
+		this.loadedChunks.clear();
+		
+		// Release every chunk in view, so they can be evicted
+		final LongList viewed = new LongArrayList();
+		collectDifference(this.viewCenterX, this.viewCenterZ, this.viewRadius, 0, 0, -1, viewed);
+		for (int i = 0; i < viewed.size(); i++) {
+			getWorld().removeChunkViewer(Chunk.getKeyX(viewed.getLong(i)), Chunk.getKeyZ(viewed.getLong(i)));
+		}
+		this.viewRadius = -1;
         getWorld().broadcastPacket(new PacketOutPlayerListItem(4, Set.copyOf(Collections.singletonList(this))));
 		getWorld().broadcastMessage(new ComponentBuilder(this.name + " left.").color(ChatColor.YELLOW).create());
 	}
@@ -206,17 +238,18 @@ public class Player extends HumanEntity {
 			// TODO teleport packet
 		}
 		
-		final Chunk currentChunk = this.chunk == null ? null : this.chunk.get();
-		Chunk newChunk;
-		try {
-			newChunk = this.getWorld().getChunk(this.location);
-		} catch (ArrayIndexOutOfBoundsException exception) {
-			this.teleport(this.getWorld().getSpawnPoint());
-			return;
-		}
-		
-		if (newChunk != currentChunk) {
-			this.chunk = new WeakReference<Chunk>(newChunk);
+		final World world = this.getWorld();
+		final int chunkX = this.location.getBlockX() >> 4;
+		final int chunkZ = this.location.getBlockZ() >> 4;
+		// Tracked by key, so moving into a chunk that is still loading never blocks
+		final long chunkKey = Chunk.getChunkKey(chunkX, chunkZ);
+		if (!this.indexed || chunkKey != this.chunkKey) {
+			if (this.indexed) {
+				world.removeEntity(this, this.chunkKey);
+			}
+			world.addEntity(this, chunkKey);
+			this.chunkKey = chunkKey;
+			this.indexed = true;
 			this.updateChunks();
 		}
 	}
@@ -224,11 +257,11 @@ public class Player extends HumanEntity {
 	public void updateClientSettings(final ClientSettings clientSettings) {
 		final int currentViewDistance = this.clientSettings == null ? -1 : this.clientSettings.viewDistance;
 		final int newViewDistance = clientSettings.viewDistance;
+		this.clientSettings = clientSettings;
 		if (newViewDistance != currentViewDistance) {
 			// Update view distance, resend chunks
 			this.updateChunks();
 		}
-		this.clientSettings = clientSettings;
 	}
 
 	public void handleEntityAction(final PacketInEntityAction packetEntityAction) {
@@ -290,71 +323,75 @@ public class Player extends HumanEntity {
 	private void updateChunks() {
 		final long startTime = System.nanoTime();
 		final int viewDistance = Math.min(this.clientSettings == null ? Polaris.VIEW_DISTANCE : this.clientSettings.viewDistance, Polaris.VIEW_DISTANCE);
-		final int viewSquared = viewDistance * viewDistance;
-
-		final Queue<Chunk> loadQueue = new LinkedList<Chunk>();
-		final Queue<Chunk> unloadQueue = new LinkedList<Chunk>();
-		final List<Player> addQueue = new ArrayList<Player>();
+		final int centerX = this.location.getBlockX() >> 4;
+		final int centerZ = this.location.getBlockZ() >> 4;
+
+		// Only the edges of the old and new view squares differ
+		final LongList loadQueue = new LongArrayList();
+		final LongList unloadQueue = new LongArrayList();
+		collectDifference(centerX, centerZ, viewDistance, this.viewCenterX, this.viewCenterZ, this.viewRadius, loadQueue);
+		collectDifference(this.viewCenterX, this.viewCenterZ, this.viewRadius, centerX, centerZ, viewDistance, unloadQueue);
+		this.viewCenterX = centerX;
+		this.viewCenterZ = centerZ;
+		this.viewRadius = viewDistance;
+
+		final World world = this.getWorld();
+		final Profiler profiler = Polaris.getServer().getProfiler();
+		final List<Packet> packets = new ArrayList<Packet>();
 		final List<Player> removeQueue = new ArrayList<Player>();
-		for (Chunk[] tab : this.getWorld().getChunks()) {
-			for (Chunk chunk : tab) {
-				double distanceSquared = MathUtilties.distanceSquared((int) this.location.getX() / 16,
-						(int) this.location.getZ() / 16, chunk.getX(), chunk.getZ());
-				if (distanceSquared >= viewSquared && this.loadedChunks.contains(chunk)) {
-					unloadQueue.add(chunk);
-					getWorld().getPlayers().forEach(player -> {
-						if (player != this && player.chunk.get() == chunk) {
-                            removeQueue.add(player);
-                        }
-					});
-				} else if (distanceSquared < viewSquared && !this.loadedChunks.contains(chunk)) {
-					loadQueue.add(chunk);
-					getWorld().getPlayers().forEach(player -> {
-						if (player != this && player.chunk.get() == chunk) {
-                            addQueue.add(player);
-                        }
-					});
+		int unloadCount = 0;
+		for (int i = 0; i < unloadQueue.size(); i++) {
+			final long key = unloadQueue.getLong(i);
+			world.removeChunkViewer(Chunk.getKeyX(key), Chunk.getKeyZ(key));
+			if (this.pendingChunks.remove(key)) {
+				// Never sent, so there is nothing to unload
+				profiler.recordChunksQueued(-1);
+				continue;
+			}
+			if (!this.loadedChunks.remove(key)) {
+				continue;
+			}
+			world.removeChunkPlayer(key, this);
+
+			final int chunkX = Chunk.getKeyX(key);
+			final int chunkZ = Chunk.getKeyZ(key);
+			packets.add(new PacketOutChunkData(ChunkDataMessage.empty(chunkX, chunkZ)));
+			unloadCount++;
+			for (final Entity entity : world.getEntities(chunkX, chunkZ)) {
+				if (entity != this && entity instanceof Player) {
+					removeQueue.add((Player) entity);
 				}
 			}
 		}
 
-		this.loadedChunks.removeAll(unloadQueue);
-		this.loadedChunks.addAll(loadQueue);
-
-		final List<Packet> packets = new ArrayList<Packet>();
-		final int loadCount = loadQueue.size();
-		if (loadCount > 0) {
-			// TODO either do chunk bulk 1.8.x only, or keep using individual chunk packets
-			/*final ChunkDataMessage[] newChunks = new ChunkDataMessage[loadCount];
-			{
-				Chunk chunk;
-				int index = 0;
-				while ((chunk = loadQueue.poll()) != null) {
-					newChunks[index++] = chunk.toMessage(true);
-				}
-			}
-			packets.add(new PacketOutChunkBulk(newChunks, true));*/
-			
-			Chunk chunk;
-			while ((chunk = loadQueue.poll()) != null) {
-				packets.add(new PacketOutChunkData(chunk.toMessage(true)));
+		int queueCount = 0;
+		for (int i = 0; i < loadQueue.size(); i++) {
+			final long key = loadQueue.getLong(i);
+			world.addChunkViewer(Chunk.getKeyX(key), Chunk.getKeyZ(key));
+			if (!this.loadedChunks.contains(key) && this.pendingChunks.add(key)) {
+				// Starts loading it on the I/O threads, tick() picks it up once done
+				world.getChunkAsync(Chunk.getKeyX(key), Chunk.getKeyZ(key));
+				queueCount++;
 			}
 		}
-
-		final int unloadCount = unloadQueue.size();
-		if (unloadCount > 0) {
-			Chunk chunk;
-			while ((chunk = loadQueue.poll()) != null) {
-				packets.add(new PacketOutChunkData(ChunkDataMessage.empty(chunk.getX(), chunk.getZ())));
+		if (queueCount > 0) {
+			profiler.recordChunksQueued(queueCount);
+			if (this.viewRequestTime == 0) {
+				this.viewRequestTime = startTime;
 			}
+		} else if (this.pendingChunks.isEmpty()) {
+			this.viewRequestTime = 0;
 		}
 		
-		this.client.sendPacket(packets.toArray(Packet[]::new));
+		// Nearest chunks are sent first
+		this.chunkQueue = this.pendingChunks.toLongArray();
+		this.chunkQueueIndex = 0;
+		LongArrays.quickSort(this.chunkQueue, (first, second) -> Integer.compare(
+				chunkDistance(first, centerX, centerZ), chunkDistance(second, centerX, centerZ)));
 		
-		addQueue.forEach(player -> {
-			addViewer(player, true);
-			player.addViewer(this, true);
-		});
+		if (packets.size() > 0) {
+			this.client.sendPacket(packets.toArray(Packet[]::new));
+		}
 		
 		if (removeQueue.size() > 0) {
 			int[] entityIds = new int[removeQueue.size()];
@@ -370,12 +407,130 @@ public class Player extends HumanEntity {
 		}
 
 		final long endTime = System.nanoTime();
-		if (loadCount > 0 || unloadCount > 0) {
-			LOGGER.info("Updated chunks for " + this.name + " (loaded " + loadCount + ", unloaded " + unloadCount
+		if (queueCount > 0 || unloadCount > 0) {
+			LOGGER.info("Updated chunks for " + this.name + " (queued " + queueCount + ", unloaded " + unloadCount
 					+ ", took " + ((float) (endTime - startTime) / 1000000L) + " ms)");
 		}
 	}
 
+	/**
+	 * Sends the nearest queued chunks that finished loading, at most
+	 * {@link Polaris#CHUNKS_PER_TICK} per tick and only while the channel is
+	 * writable. Called once per tick from the tick thread.
+	 */
+	public void tick() {
+		if (this.pendingChunks.isEmpty()) {
+			return;
+		}
+
+		final World world = this.getWorld();
+		final List<Packet> packets = new ArrayList<Packet>();
+		final List<Player> addQueue = new ArrayList<Player>();
+		int sent = 0;
+		int removed = 0;
+		// Chunks still loading are skipped, the index only moves past finished ones
+		boolean waiting = false;
+		for (int i = this.chunkQueueIndex; i < this.chunkQueue.length; i++) {
+			if (sent >= Polaris.CHUNKS_PER_TICK || !this.client.isWritable()) {
+				break;
+			}
+			
+			final long key = this.chunkQueue[i];
+			if (!this.pendingChunks.contains(key)) {
+				if (!waiting) {
+					this.chunkQueueIndex = i + 1;
+				}
+				continue;
+			}
+			
+			// Failed loads stay queued, the world retries them after a while
+			final CompletableFuture<Chunk> future = world.getChunkAsync(Chunk.getKeyX(key), Chunk.getKeyZ(key));
+			if (!future.isDone() || future.isCompletedExceptionally()) {
+				waiting = true;
+				continue;
+			}
+			
+			this.pendingChunks.remove(key);
+			removed++;
+			if (!waiting) {
+				this.chunkQueueIndex = i + 1;
+			}
+			final Chunk chunk = future.join();
+
+			// TODO either do chunk bulk 1.8.x only, or keep using individual chunk packets
+			sent++;
+			this.loadedChunks.add(key);
+			world.addChunkPlayer(key, this);
+			packets.add(chunk.toPacket());
+			for (final Entity entity : world.getEntities(chunk.getX(), chunk.getZ())) {
+				if (entity != this && entity instanceof Player) {
+					addQueue.add((Player) entity);
+				}
+			}
+		}
+		
+		final Profiler profiler = Polaris.getServer().getProfiler();
+		profiler.recordChunksQueued(-removed);
+		if (this.pendingChunks.isEmpty()) {
+			profiler.recordTimeToFullView(System.nanoTime() - this.viewRequestTime);
+			this.viewRequestTime = 0;
+		}
+		
+		if (packets.size() > 0) {
+			this.client.sendPacket(packets.toArray(Packet[]::new));
+		}
+		
+		addQueue.forEach(player -> {
+			addViewer(player, true);
+			player.addViewer(this, true);
+		});
+	}
+
+	private static int chunkDistance(final long key, final int centerX, final int centerZ) {
+		final int deltaX = Chunk.getKeyX(key) - centerX;
+		final int deltaZ = Chunk.getKeyZ(key) - centerZ;
+		return deltaX * deltaX + deltaZ * deltaZ;
+	}
+
+	/**
+	 * Collects the keys of all chunks in the square of the given radius around
+	 * (x, z) that are not in the square of radius exRadius around (exX, exZ).
+	 * Rows overlapping the excluded square only visit the columns outside it, so
+	 * the work is proportional to the difference rather than the whole square.
+	 * A negative radius denotes an empty square.
+	 */
+	private static void collectDifference(final int x, final int z, final int radius, final int exX, final int exZ,
+			final int exRadius, final LongList out) {
+		for (int chunkZ = z - radius; chunkZ <= z + radius; chunkZ++) {
+			if (exRadius < 0 || chunkZ < exZ - exRadius || chunkZ > exZ + exRadius) {
+				for (int chunkX = x - radius; chunkX <= x + radius; chunkX++) {
+					out.add(Chunk.getChunkKey(chunkX, chunkZ));
+				}
+				continue;
+			}
+
+			final int maxLeft = Math.min(x + radius, exX - exRadius - 1);
+			for (int chunkX = x - radius; chunkX <= maxLeft; chunkX++) {
+				out.add(Chunk.getChunkKey(chunkX, chunkZ));
+			}
+			final int minRight = Math.max(x - radius, exX + exRadius + 1);
+			for (int chunkX = minRight; chunkX <= x + radius; chunkX++) {
+				out.add(Chunk.getChunkKey(chunkX, chunkZ));
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a chunk has been sent to this player and not unloaded
+	 * since
+	 * 
+	 * @param key chunk key
+	 * @return whether the client has the chunk
+	 */
+	public boolean isChunkLoaded(final long key) {
+		return this.loadedChunks.contains(key);
+	}
+
 	public long getPing() {
 		return this.client.getPing();
 	}
@@ -38,6 +38,7 @@ public final class ConnectionBuilder extends ChannelInitializer<SocketChannel> {
 
 	public static final String TIMEOUT_HANDLER = "timeout-handler";
 	public static final String PACKET_FRAMER = "packet-framer";
+	public static final String PACKET_COMPRESSOR = "packet-compressor";
 	public static final String VIA_ENCODER = "via-encoder";
 	public static final String VIA_DECODER = "via-decoder";
 	public static final String PACKET_DECODER = "packet-decoder";
@@ -49,7 +50,6 @@ public final class ConnectionBuilder extends ChannelInitializer<SocketChannel> {
 	@Override
 	protected void initChannel(final SocketChannel ch) throws Exception {
 		final ChannelPipeline pipeline = ch.pipeline();
-		final NetClient client = new NetClient();
 		
 		// ViaVersion
 		final UserConnection user = new UserConnectionImpl(ch);
@@ -58,8 +58,11 @@ public final class ConnectionBuilder extends ChannelInitializer<SocketChannel> {
 		}
 		// End ViaVersion
 		
+		final NetClient client = new NetClient(user);
+		
 		pipeline.addLast(TIMEOUT_HANDLER, new ReadTimeoutHandler(30, TimeUnit.SECONDS));
 		pipeline.addLast(PACKET_FRAMER, new PacketFramer());
+		// PACKET_COMPRESSOR goes here once the client has logged in
 		// ViaVersion
 		pipeline.addLast(VIA_DECODER, new ViaDecoder(user));
 		pipeline.addLast(VIA_ENCODER, new ViaEncoder(user));
@@ -67,6 +70,9 @@ public final class ConnectionBuilder extends ChannelInitializer<SocketChannel> {
 		pipeline.addLast(PACKET_DECODER, new PacketDecoder(client));
 		pipeline.addLast(PACKET_ENCODER, new PacketEncoder(client));
 		pipeline.addLast(NET_CLIENT, client);
+		
+		this.server.addClient(client);
+		ch.closeFuture().addListener(future -> this.server.removeClient(client));
 	}
 
 }
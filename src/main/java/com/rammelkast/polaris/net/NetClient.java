@@ -17,26 +17,34 @@
 package com.rammelkast.polaris.net;
 
 import java.net.InetSocketAddress;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.rammelkast.polaris.Polaris;
+import com.rammelkast.polaris.TickThread;
 import com.rammelkast.polaris.entity.human.Player;
+import com.rammelkast.polaris.net.codec.PacketCompressor;
 import com.rammelkast.polaris.net.packet.Packet;
+import com.rammelkast.polaris.net.packet.PreparedPacket;
 import com.rammelkast.polaris.net.packet.login.out.PacketOutLoginDisconnect;
+import com.rammelkast.polaris.net.packet.login.out.PacketOutLoginSetCompression;
 import com.rammelkast.polaris.net.packet.login.out.PacketOutLoginSuccess;
 import com.rammelkast.polaris.net.packet.play.out.PacketOutPlayDisconnect;
+import com.viaversion.viaversion.api.connection.UserConnection;
 
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.PlatformDependent;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
@@ -51,12 +59,16 @@ public final class NetClient extends ChannelInboundHandlerAdapter {
 	private static final AtomicInteger KEEPALIVE_ID_SUPPLIER = new AtomicInteger();
 	private static final Logger LOGGER = LogManager.getLogger(NetClient.class);
 	
-	private final Queue<Packet> packetQueue = new LinkedList<Packet>();
+	private final UserConnection user;
+	private final Queue<Packet> packetQueue = PlatformDependent.newMpscQueue();
+	private final Queue<Packet> inboundQueue = PlatformDependent.newMpscQueue();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final AtomicBoolean destroyed = new AtomicBoolean();
 	@Getter
 	@Setter
-	private NetState state = NetState.HANDSHAKE;
+	private volatile NetState state = NetState.HANDSHAKE;
 	@Getter
-	private boolean connected = true;
+	private volatile boolean connected = true;
 	private ChannelHandlerContext channel;
 	@Getter
 	private String username;
@@ -71,15 +83,43 @@ public final class NetClient extends ChannelInboundHandlerAdapter {
 	private int keepAliveId;
 	
 	@Override
-	public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+	public void handlerAdded(final ChannelHandlerContext ctx) {
 		this.channel = ctx;
+	}
+	
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
 		if (this.connected == false) {
 			LOGGER.warn("Skipping packet: connection closed");
 			return;
 		}
 		
-		((Packet) msg).onReceive(this);
-		this.flush();
+		final Packet packet = (Packet) msg;
+		switch (this.state) {
+		case HANDSHAKE:
+		case STATUS:
+			// Answered right away, these do not touch game state
+			packet.onReceive(this);
+			break;
+		default:
+			this.inboundQueue.offer(packet);
+			break;
+		}
+	}
+	
+	/**
+	 * Handles all packets received since the last call. Must be called on the
+	 * tick thread.
+	 */
+	public void processPackets() {
+		Packet packet;
+		while (this.connected && (packet = this.inboundQueue.poll()) != null) {
+			try {
+				packet.onReceive(this);
+			} catch (Exception ex) {
+				this.disconnect("Internal error", ex);
+			}
+		}
 	}
 
 	@Override
@@ -89,22 +129,31 @@ public final class NetClient extends ChannelInboundHandlerAdapter {
 
 	@Override
 	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
-		// Do not disconnect twice
-		if (!this.connected) {
+		this.connected = false;
+		this.destroy();
+		super.channelInactive(ctx);
+	}
+	
+	/**
+	 * Tears down the client once, whether it was disconnected by the server or
+	 * the channel closed
+	 */
+	private void destroy() {
+		if (!this.destroyed.compareAndSet(false, true)) {
 			return;
 		}
 		
-		synchronized (this.packetQueue) {
-			this.connected = false;
-			this.packetQueue.clear();
-		}
-		
-		if (this.player != null) {
-			this.player.destroy();
-			this.player = null;
-			LOGGER.info("{} disconnected (left the game)", this.username);
-		}
-		super.channelInactive(ctx);
+		// The outbound queue is drained on the event loop only
+		this.channel.executor().execute(this::discardQueue);
+		// Player state belongs to the tick thread
+		Polaris.getServer().getTickThread().execute(() -> {
+			this.inboundQueue.clear();
+			if (this.player != null) {
+				this.player.destroy();
+				this.player = null;
+				LOGGER.info("{} disconnected (left the game)", this.username);
+			}
+		});
 	}
 	
 	public void login(final String username, final UUID uniqueId) {
@@ -116,38 +165,133 @@ public final class NetClient extends ChannelInboundHandlerAdapter {
 			throw new IllegalStateException("Cannot login twice");
 		}
 
+		if (Polaris.COMPRESSION_THRESHOLD >= 0) {
+			this.sendPacket(new PacketOutLoginSetCompression(Polaris.COMPRESSION_THRESHOLD));
+		}
 		this.sendPacket(new PacketOutLoginSuccess(uniqueId, username));
 		this.setState(NetState.PLAY);
 		
 		this.player = new Player(Polaris.getServer().getWorld(), this);
 	}
 	
+	/**
+	 * Inserts the compression stage into the pipeline, everything written after
+	 * this call is compressed. Must be called on the event loop, directly after
+	 * the set compression packet has been written.
+	 * 
+	 * @param threshold minimum size of packets to compress
+	 */
+	public void enableCompression(final int threshold) {
+		final ChannelPipeline pipeline = this.channel.pipeline();
+		if (pipeline.get(ConnectionBuilder.PACKET_COMPRESSOR) != null) {
+			throw new IllegalStateException("Compression is already enabled");
+		}
+		pipeline.addAfter(ConnectionBuilder.PACKET_FRAMER, ConnectionBuilder.PACKET_COMPRESSOR,
+				new PacketCompressor(threshold, Polaris.getServer().getProfiler()));
+	}
+	
+	/**
+	 * Drops all queued packets, releasing the ones that hold pooled buffers
+	 */
+	private void discardQueue() {
+		Packet packet;
+		while ((packet = this.packetQueue.poll()) != null) {
+			ReferenceCountUtil.release(packet);
+		}
+	}
+	
 	public String getAddress() {
 		return ((InetSocketAddress) this.channel.channel().remoteAddress()).getAddress().toString();
 	}
 	
+	/**
+	 * Writes all queued packets and flushes the channel once. Only does work
+	 * on the event loop, calls from other threads schedule a flush instead.
+	 */
 	public void flush() {
-		synchronized (this.packetQueue) {
-			Packet packet;
-			while ((packet = this.packetQueue.poll()) != null && this.connected) {
+		if (!this.channel.executor().inEventLoop()) {
+			this.scheduleFlush();
+			return;
+		}
+		
+		// Cleared before draining, packets queued from here on need a new flush
+		this.flushScheduled.set(false);
+		if (!this.connected) {
+			this.discardQueue();
+			return;
+		}
+		
+		final boolean sharedFrames = this.canUseSharedFrames();
+		int written = 0;
+		Packet packet;
+		while ((packet = this.packetQueue.poll()) != null) {
+			if (sharedFrames && packet instanceof PreparedPacket) {
+				// Skip encoding, compression and framing entirely
+				final PreparedPacket prepared = (PreparedPacket) packet;
+				this.channel.pipeline().context(ConnectionBuilder.PACKET_FRAMER).write(prepared.retainedFrame());
+				prepared.release();
+			} else {
 				this.channel.write(packet);
-				packet.onSend(this);
 			}
+			packet.onSend(this);
+			written++;
+		}
+		
+		if (written > 0) {
 			this.channel.flush();
+			Polaris.getServer().getProfiler().recordFlush(written);
 		}
 	}
 	
+	/**
+	 * Schedules a single flush on the event loop, unless one is pending already.
+	 * This coalesces all packets sent in between into one write syscall.
+	 */
+	private void scheduleFlush() {
+		if (this.flushScheduled.compareAndSet(false, true)) {
+			this.channel.executor().execute(this::flush);
+		}
+	}
+	
+	/**
+	 * Checks whether this client can be sent the shared frame of a
+	 * {@link PreparedPacket}, which is only the case if nothing in the pipeline
+	 * would have altered the packet.
+	 * 
+	 * @return true if shared frames can be written
+	 */
+	private boolean canUseSharedFrames() {
+		return this.state == NetState.PLAY && !this.user.shouldTransformPacket();
+	}
+	
+	/**
+	 * Queues packets to be written at the next flush. Reference counted packets
+	 * are released once written, except prepared packets, which are shared and
+	 * retained here instead.
+	 */
 	public void sendPacket(Packet... packets) {
 		if (!this.connected) {
+			for (final Packet packet : packets) {
+				if (!(packet instanceof PreparedPacket)) {
+					ReferenceCountUtil.release(packet);
+				}
+			}
 			return;
 		}
 		
-		synchronized (this.packetQueue) {
-			for (final Packet packet : packets) {
-				this.packetQueue.offer(packet);
+		for (final Packet packet : packets) {
+			if (packet instanceof PreparedPacket) {
+				// Shared with other clients, kept alive until written or discarded
+				((PreparedPacket) packet).retain();
 			}
+			this.packetQueue.offer(packet);
+		}
+		
+		// The tick thread flushes every client once at the end of the tick, a client
+		// that disconnected meanwhile discards what was queued on its event loop
+		if (!TickThread.isTickThread() || !this.connected) {
+			this.scheduleFlush();
 		}
-		this.flush();
 	}
 	
 	public void disconnect(final String message, final Exception exception) {
@@ -189,6 +333,17 @@ public final class NetClient extends ChannelInboundHandlerAdapter {
 		if (this.username != null) {
 			LOGGER.info("{} disconnected", this.username);
 		}
+		this.destroy();
+	}
+	
+	/**
+	 * Checks whether the channel can take more data without exceeding its
+	 * outbound buffer high water mark
+	 * 
+	 * @return true if the channel is writable
+	 */
+	public boolean isWritable() {
+		return this.channel.channel().isWritable();
 	}
 	
 	public EventLoop getEventLoop() {
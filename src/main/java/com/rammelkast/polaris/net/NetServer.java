@@ -16,6 +16,10 @@
  */
 package com.rammelkast.polaris.net;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -43,6 +47,7 @@ public final class NetServer extends Thread {
 	private final EventLoopGroup bossGroup, workerGroup;
 	private final ServerBootstrap bootstrap;
 	private final ConnectionBuilder connectionBuilder;
+	private final Set<NetClient> clients = ConcurrentHashMap.newKeySet();
 
 	public NetServer(int port) {
 		this.port = port;
@@ -80,6 +85,23 @@ public final class NetServer extends Thread {
         }
 	}
 	
+	public void addClient(final NetClient client) {
+		this.clients.add(client);
+	}
+	
+	public void removeClient(final NetClient client) {
+		this.clients.remove(client);
+	}
+	
+	/**
+	 * Gets all clients with an open connection
+	 * 
+	 * @return unmodifiable view of the connected clients
+	 */
+	public Set<NetClient> getClients() {
+		return Collections.unmodifiableSet(this.clients);
+	}
+	
 	public void shutdown() {
 		try {
 			this.workerGroup.shutdownGracefully();
@@ -0,0 +1,147 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.net.codec;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.rammelkast.polaris.net.packet.PacketWrapper;
+import com.rammelkast.polaris.profile.Profiler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.handler.codec.DecoderException;
+
+/**
+ * Handles protocol level compression, sits between the {@link PacketFramer}
+ * and the ViaVersion codecs. Packets smaller than the threshold are sent with
+ * a data length of zero, larger packets are deflated.
+ * <p>
+ * The {@link Deflater} and {@link Inflater} are reused for the lifetime of the
+ * channel and released when this handler is removed.
+ */
+public final class PacketCompressor extends ByteToMessageCodec<ByteBuf> {
+
+	/**
+	 * Maximum decompressed packet size, same as the vanilla server
+	 */
+	private static final int MAX_DECOMPRESSED_SIZE = 2097152;
+	private static final int DEFLATE_CHUNK_SIZE = 8192;
+
+	private final int threshold;
+	private final Profiler profiler;
+	private final Deflater deflater = new Deflater();
+	private final Inflater inflater = new Inflater();
+
+	public PacketCompressor(final int threshold, final Profiler profiler) {
+		this.threshold = threshold;
+		this.profiler = profiler;
+	}
+
+	@Override
+	protected void encode(final ChannelHandlerContext ctx, final ByteBuf msg, final ByteBuf out) throws Exception {
+		PacketFramer.reserveHeader(ctx, out);
+		final int length = msg.readableBytes();
+		final int start = out.writerIndex();
+		compress(this.deflater, this.threshold, msg, out);
+		this.profiler.recordCompression(length, out.writerIndex() - start);
+	}
+
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+		if (!in.isReadable()) {
+			return;
+		}
+
+		final int dataLength = new PacketWrapper(in, null).readVarInt();
+		if (dataLength == 0) {
+			out.add(in.readRetainedSlice(in.readableBytes()));
+			return;
+		}
+
+		if (dataLength < this.threshold) {
+			throw new DecoderException(
+					"Badly compressed packet: size " + dataLength + " is below threshold " + this.threshold);
+		}
+		if (dataLength > MAX_DECOMPRESSED_SIZE) {
+			throw new DecoderException(
+					"Badly compressed packet: size " + dataLength + " is above maximum " + MAX_DECOMPRESSED_SIZE);
+		}
+
+		final ByteBuf decompressed = ctx.alloc().buffer(dataLength);
+		try {
+			this.inflater.setInput(in.nioBuffer());
+			final int inflated = this.inflater.inflate(decompressed.internalNioBuffer(0, dataLength));
+			if (inflated != dataLength) {
+				throw new DecoderException(
+						"Badly compressed packet: expected " + dataLength + " bytes, got " + inflated);
+			}
+			decompressed.writerIndex(dataLength);
+			out.add(decompressed);
+		} catch (Exception e) {
+			decompressed.release();
+			throw e;
+		} finally {
+			this.inflater.reset();
+			in.skipBytes(in.readableBytes());
+		}
+	}
+
+	/**
+	 * Writes the given packet to the output in the compressed packet format.
+	 * The deflater is reset afterwards so it can be reused.
+	 * 
+	 * @param deflater  deflater to compress with
+	 * @param threshold minimum size of packets to compress
+	 * @param msg       uncompressed packet, fully consumed
+	 * @param out       buffer to write to
+	 */
+	public static void compress(final Deflater deflater, final int threshold, final ByteBuf msg, final ByteBuf out) {
+		final PacketWrapper wrapper = new PacketWrapper(out, null);
+		final int length = msg.readableBytes();
+		if (length < threshold) {
+			wrapper.writeVarInt(0);
+			out.writeBytes(msg);
+			return;
+		}
+
+		wrapper.writeVarInt(length);
+		deflater.setInput(msg.nioBuffer());
+		deflater.finish();
+		while (!deflater.finished()) {
+			out.ensureWritable(DEFLATE_CHUNK_SIZE);
+			final ByteBuffer target = out.internalNioBuffer(out.writerIndex(), out.writableBytes());
+			out.writerIndex(out.writerIndex() + deflater.deflate(target));
+		}
+		deflater.reset();
+		msg.skipBytes(length);
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		try {
+			super.handlerRemoved(ctx);
+		} finally {
+			this.deflater.end();
+			this.inflater.end();
+		}
+	}
+
+}
@@ -34,6 +34,7 @@ public final class PacketEncoder extends MessageToByteEncoder<Packet> {
 
 	@Override
 	protected void encode(final ChannelHandlerContext ctx, final Packet packet, final ByteBuf out) throws Exception {
+		PacketFramer.reserveHeader(ctx, out);
 		final PacketWrapper wrapper = new PacketWrapper(out, new WeakReference<>(this.client));
 		wrapper.writeVarInt(packet.getId());
 		packet.write(wrapper);
@@ -21,49 +21,134 @@ import java.util.List;
 import com.rammelkast.polaris.net.packet.PacketWrapper;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.ByteToMessageCodec;
 import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.AttributeKey;
 
+/**
+ * Adds and strips the VarInt length prefix of every packet.
+ * <p>
+ * Outbound stages reserve {@link #MAX_HEADER_LENGTH} bytes in front of the
+ * reader index of the buffers they produce (see {@link #reserveHeader}). When
+ * the last buffer reserved on the channel reaches this handler, the length is
+ * written into those bytes instead of copying the packet into a new buffer.
+ * Any other buffer, such as one rewritten by ViaVersion, is copied as before.
+ */
 public final class PacketFramer extends ByteToMessageCodec<ByteBuf> {
 
+	/**
+	 * Frames are limited to 21-bit lengths, a 3 byte VarInt
+	 */
+	public static final int MAX_HEADER_LENGTH = 3;
+	/**
+	 * Buffer whose bytes in front of the reader index were last reserved on a
+	 * channel
+	 */
+	private static final AttributeKey<ByteBuf> RESERVED = AttributeKey.valueOf("polaris-reserved-header");
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
+			throws Exception {
+		if (msg instanceof ByteBuf) {
+			final ByteBuf buf = (ByteBuf) msg;
+			// Bytes in front of the reader index of any other buffer may be in use
+			final boolean reserved = ctx.channel().attr(RESERVED).getAndSet(null) == buf;
+			final int bodyLength = buf.readableBytes();
+			final int headerLength = getVarIntSize(bodyLength);
+			if (reserved && headerLength <= MAX_HEADER_LENGTH && buf.readerIndex() >= headerLength) {
+				final int start = buf.readerIndex() - headerLength;
+				setVarInt(buf, start, bodyLength);
+				buf.readerIndex(start);
+				ctx.write(buf, promise);
+				return;
+			}
+		}
+		super.write(ctx, msg, promise);
+	}
+
 	@Override
 	protected void encode(final ChannelHandlerContext ctx, final ByteBuf msg, final ByteBuf out) throws Exception {
+		frame(msg, out);
+	}
+
+	/**
+	 * Splits the input into frames. The length prefix is peeked at without
+	 * moving the reader index, so an incomplete frame leaves the cumulation
+	 * untouched. Complete frames are emitted as retained slices of the
+	 * cumulation rather than copies.
+	 */
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+		while (in.isReadable()) {
+			final int start = in.readerIndex();
+			final int available = in.readableBytes();
+			int length = 0;
+			int headerLength = 0;
+			byte read;
+			do {
+				if (headerLength == 3) {
+					throw new CorruptedFrameException("length wider than 21-bit");
+				}
+				if (headerLength == available) {
+					// Length prefix not fully received yet
+					return;
+				}
+				read = in.getByte(start + headerLength);
+				length |= (read & 0x7F) << (7 * headerLength++);
+			} while (read < 0);
+
+			if (available - headerLength < length) {
+				// Frame not fully received yet
+				return;
+			}
+
+			in.skipBytes(headerLength);
+			out.add(in.readRetainedSlice(length));
+		}
+	}
+	
+	/**
+	 * Writes the given packet to the output, prefixed with its length.
+	 * 
+	 * @param msg packet to frame, fully consumed
+	 * @param out buffer to write to
+	 */
+	public static void frame(final ByteBuf msg, final ByteBuf out) {
 		final PacketWrapper wrapper = new PacketWrapper(out, null);
-		int bodyLength = msg.readableBytes();
-		int headerLength = getVarIntSize(bodyLength);
+		final int bodyLength = msg.readableBytes();
+		final int headerLength = getVarIntSize(bodyLength);
 		out.ensureWritable(headerLength + bodyLength);
 
 		wrapper.writeVarInt(bodyLength);
 		out.writeBytes(msg);
 	}
-
-	@Override
-	protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
-		in.markReaderIndex();
-        final byte[] buf = new byte[3];
-        for (int i = 0; i < buf.length; i++) {
-            if (!in.isReadable()) {
-                in.resetReaderIndex();
-                return;
-            }
-
-            buf[i] = in.readByte();
-            if (buf[i] >= 0) {
-                int length = new PacketWrapper(Unpooled.wrappedBuffer(buf), null).readVarInt();
-                if (in.readableBytes() < length) {
-                    in.resetReaderIndex();
-                } else {
-                    out.add(in.readBytes(length));
-                }
-                return;
-            }
-        }
-        throw new CorruptedFrameException("length wider than 21-bit");
+	
+	/**
+	 * Reserves room for the length prefix in an empty output buffer, so the
+	 * packet body written after it can be framed in place. Only the buffer
+	 * reserved last on the channel is framed in place.
+	 * 
+	 * @param ctx context of the stage producing the buffer
+	 * @param out buffer that is about to be written to
+	 */
+	public static void reserveHeader(final ChannelHandlerContext ctx, final ByteBuf out) {
+		out.ensureWritable(MAX_HEADER_LENGTH);
+		out.writerIndex(out.writerIndex() + MAX_HEADER_LENGTH);
+		out.readerIndex(out.writerIndex());
+		ctx.channel().attr(RESERVED).set(out);
+	}
+	
+	private static void setVarInt(final ByteBuf buf, int index, int value) {
+		while ((value & 0xFFFFFF80) != 0) {
+			buf.setByte(index++, (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf.setByte(index, value);
 	}
 	
-	private int getVarIntSize(final int varInt) {
+	private static int getVarIntSize(final int varInt) {
 		if ((varInt & 0xFFFFFF80) == 0) {
 			return 1;
 		} else if ((varInt & 0xFFFFC000) == 0) {
@@ -16,8 +16,7 @@
  */
 package com.rammelkast.polaris.net.packet;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Supplier;
 
 import com.rammelkast.polaris.net.NetClient.NetState;
 import com.rammelkast.polaris.net.packet.login.in.PacketInLoginStart;
@@ -36,54 +35,65 @@ import com.rammelkast.polaris.net.packet.status.in.PacketInStatusRequest;
 
 public final class PacketManager {
 
-	public static final Map<Integer, Class<? extends Packet>> STATUS = new HashMap<Integer, Class<? extends Packet>>();
-	public static final Map<Integer, Class<? extends Packet>> LOGIN = new HashMap<Integer, Class<? extends Packet>>();
-	public static final Map<Integer, Class<? extends Packet>> PLAY = new HashMap<Integer, Class<? extends Packet>>();
+	/**
+	 * Highest serverbound packet id in protocol 47 is 0x19
+	 */
+	private static final int MAX_PACKET_ID = 0x19;
+	
+	/**
+	 * Packet factories, indexed by net state ordinal and then packet id
+	 */
+	private static final PacketFactory[][] FACTORIES = new PacketFactory[NetState.values().length][MAX_PACKET_ID + 1];
 	
 	static {
 		// Register packets
-		STATUS.put(0x00, PacketInStatusRequest.class);
-		STATUS.put(0x01, PacketInStatusPing.class);
+		register(NetState.STATUS, 0x00, PacketInStatusRequest::new);
+		register(NetState.STATUS, 0x01, PacketInStatusPing::new);
 		
-		LOGIN.put(0x00, PacketInLoginStart.class);
+		register(NetState.LOGIN, 0x00, PacketInLoginStart::new);
 		
-		PLAY.put(0x00, PacketInKeepAlive.class);
-		PLAY.put(0x0a, PacketInAnimation.class);
-		PLAY.put(0x0b, PacketInEntityAction.class);
-		PLAY.put(0x01, PacketInChatMessage.class);
-		PLAY.put(0x03, PacketInPlayerFlying.class);
-		PLAY.put(0x04, PacketInPlayerPosition.class);
-		PLAY.put(0x05, PacketInPlayerLook.class);
-		PLAY.put(0x06, PacketInPlayerPositionLook.class);
-		PLAY.put(0x15, PacketInClientSettings.class);
-		PLAY.put(0x17, PacketInPluginMessage.class);
+		register(NetState.PLAY, 0x00, PacketInKeepAlive::new);
+		register(NetState.PLAY, 0x0a, PacketInAnimation::new);
+		register(NetState.PLAY, 0x0b, PacketInEntityAction::new);
+		register(NetState.PLAY, 0x01, PacketInChatMessage::new);
+		register(NetState.PLAY, 0x03, PacketInPlayerFlying::new);
+		register(NetState.PLAY, 0x04, PacketInPlayerPosition::new);
+		register(NetState.PLAY, 0x05, PacketInPlayerLook::new);
+		register(NetState.PLAY, 0x06, PacketInPlayerPositionLook::new);
+		register(NetState.PLAY, 0x15, PacketInClientSettings::new);
+		register(NetState.PLAY, 0x17, PacketInPluginMessage::new);
+	}
+	
+	private static void register(final NetState state, final int id, final PacketFactory factory) {
+		if (state == NetState.HANDSHAKE) {
+			throw new IllegalArgumentException("Handshake packets are decoded directly");
+		}
+		if (FACTORIES[state.ordinal()][id] != null) {
+			throw new IllegalStateException("Packet 0x" + Integer.toHexString(id) + " registered twice for " + state);
+		}
+		FACTORIES[state.ordinal()][id] = factory;
 	}
 	
-	public static Packet fetchPacket(final int id, final NetState state) throws Exception {
-		switch (state) {
-		case HANDSHAKE: {
+	/**
+	 * Creates a new instance of the packet with the given id
+	 * 
+	 * @param id    packet id
+	 * @param state current state of the connection
+	 * @return the packet, or null if the id is unknown in this state
+	 */
+	public static Packet fetchPacket(final int id, final NetState state) {
+		if (state == NetState.HANDSHAKE) {
 			throw new IllegalStateException("Cannot fetch packets in handshake state");
-		} case LOGIN: {
-			final Class<? extends Packet> packet = LOGIN.get(id);
-			if (packet == null) {
-				return null;
-			}
-			return packet.getDeclaredConstructor().newInstance();
-		} case STATUS: {
-			final Class<? extends Packet> packet = STATUS.get(id);
-			if (packet == null) {
-				return null;
-			}
-			return packet.getDeclaredConstructor().newInstance();
-		} case PLAY: {
-			final Class<? extends Packet> packet = PLAY.get(id);
-			if (packet == null) {
-				return null;
-			}
-			return packet.getDeclaredConstructor().newInstance();
-		} default:
-			throw new IllegalStateException("Illegal net state");
 		}
+		if (id < 0 || id > MAX_PACKET_ID) {
+			return null;
+		}
+		
+		final PacketFactory factory = FACTORIES[state.ordinal()][id];
+		return factory == null ? null : factory.get();
 	}
 	
+	@FunctionalInterface
+	private interface PacketFactory extends Supplier<Packet> {}
+	
 }
@@ -87,9 +87,10 @@ public final class PacketWrapper {
 	}
 
 	public void writeLocation(final Location location) {
-		final long x = (long) location.getX();
-		final long y = (long) location.getY();
-		final long z = (long) location.getZ();
+		this.writePosition((long) location.getX(), (long) location.getY(), (long) location.getZ());
+	}
+
+	public void writePosition(final long x, final long y, final long z) {
 		this.buffer.writeLong(((x & 0x3FFFFFF) << 38) | ((y & 0xFFF) << 26) | (z & 0x3FFFFFF));
 	}
 	
@@ -0,0 +1,163 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.net.packet;
+
+import java.util.zip.Deflater;
+
+import com.rammelkast.polaris.Polaris;
+import com.rammelkast.polaris.net.NetClient;
+import com.rammelkast.polaris.net.codec.PacketCompressor;
+import com.rammelkast.polaris.net.codec.PacketFramer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
+import lombok.Getter;
+
+/**
+ * A packet that is encoded, compressed and framed once, so the same bytes can
+ * be written to any number of clients. Clients that cannot use the shared frame
+ * (for example because ViaVersion has to rewrite the packet) are sent the
+ * wrapped packet through the regular pipeline instead.
+ * <p>
+ * The frame is a pooled buffer. Whoever creates a prepared packet owns one
+ * reference and releases it when done with the packet, clients retain it while
+ * it is queued and in-flight writes hold duplicates of their own. The wrapped
+ * packet is released together with the frame.
+ */
+public final class PreparedPacket extends Packet implements ReferenceCounted {
+
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+
+	@Getter
+	private final Packet packet;
+	private final ByteBuf frame;
+
+	public PreparedPacket(final Packet packet) {
+		this.packet = packet;
+		this.frame = prepare(packet);
+	}
+
+	@Override
+	public byte getId() {
+		return this.packet.getId();
+	}
+
+	@Override
+	public void read(final PacketWrapper wrapper) {
+		throw new IllegalAccessError("Packet cannot be read");
+	}
+
+	@Override
+	public void write(final PacketWrapper wrapper) {
+		this.packet.write(wrapper);
+	}
+
+	@Override
+	public void onSend(final NetClient client) {
+		this.packet.onSend(client);
+	}
+
+	/**
+	 * Gets the wire form of this packet, ready to be written past the framer.
+	 * 
+	 * @return a retained duplicate of the shared frame
+	 */
+	public ByteBuf retainedFrame() {
+		return this.frame.retainedDuplicate();
+	}
+
+	/**
+	 * Gets the size of this packet on the wire.
+	 * 
+	 * @return the frame size in bytes
+	 */
+	public int getFrameSize() {
+		return this.frame.readableBytes();
+	}
+
+	@Override
+	public int refCnt() {
+		return this.frame.refCnt();
+	}
+
+	@Override
+	public PreparedPacket retain() {
+		return this.retain(1);
+	}
+
+	@Override
+	public PreparedPacket retain(final int increment) {
+		this.frame.retain(increment);
+		return this;
+	}
+
+	@Override
+	public PreparedPacket touch() {
+		return this.touch(null);
+	}
+
+	@Override
+	public PreparedPacket touch(final Object hint) {
+		this.frame.touch(hint);
+		return this;
+	}
+
+	@Override
+	public boolean release() {
+		return this.release(1);
+	}
+
+	@Override
+	public boolean release(final int decrement) {
+		if (this.frame.release(decrement)) {
+			ReferenceCountUtil.release(this.packet);
+			return true;
+		}
+		return false;
+	}
+
+	private static ByteBuf prepare(final Packet packet) {
+		final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+		final ByteBuf body = alloc.buffer();
+		final ByteBuf compressed = alloc.buffer();
+		final ByteBuf framed = alloc.buffer();
+		try {
+			final PacketWrapper wrapper = new PacketWrapper(body, null);
+			wrapper.writeVarInt(packet.getId());
+			packet.write(wrapper);
+
+			if (Polaris.COMPRESSION_THRESHOLD >= 0) {
+				PacketCompressor.compress(DEFLATER.get(), Polaris.COMPRESSION_THRESHOLD, body, compressed);
+				PacketFramer.frame(compressed, framed);
+			} else {
+				PacketFramer.frame(body, framed);
+			}
+
+			// Copied to a buffer of the exact size, as prepared packets may be kept for long
+			final int size = framed.readableBytes();
+			return alloc.directBuffer(size, size).writeBytes(framed);
+		} finally {
+			body.release();
+			compressed.release();
+			framed.release();
+		}
+	}
+
+}
@@ -52,7 +52,8 @@ public final class PacketOutChunkBulk extends Packet {
 		}
 		
 		for (ChunkDataMessage chunk : this.bulk) {
-			buffer.writeBytes(chunk.getData());
+			final ByteBuf data = chunk.getData();
+			buffer.writeBytes(data, data.readerIndex(), data.readableBytes());
 		}
 	}
 	
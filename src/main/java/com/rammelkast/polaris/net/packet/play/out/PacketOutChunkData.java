@@ -20,14 +20,22 @@ import com.rammelkast.polaris.net.packet.Packet;
 import com.rammelkast.polaris.net.packet.PacketWrapper;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCounted;
 import lombok.Data;
-import lombok.RequiredArgsConstructor;
 
-@RequiredArgsConstructor
-public final class PacketOutChunkData extends Packet {
+/**
+ * Streams a chunk to a client. The packet retains its {@link ChunkDataMessage}
+ * until it is released, which the encoder does once the packet is written.
+ */
+public final class PacketOutChunkData extends Packet implements ReferenceCounted {
 
 	private final ChunkDataMessage chunkData;
 	
+	public PacketOutChunkData(final ChunkDataMessage chunkData) {
+		this.chunkData = chunkData.retain();
+	}
+	
 	@Override
 	public byte getId() {
 		return 0x21;
@@ -45,18 +53,102 @@ public final class PacketOutChunkData extends Packet {
 		buffer.writeInt(this.chunkData.getZ());
 		buffer.writeBoolean(this.chunkData.isContinuous());
 		buffer.writeShort(this.chunkData.getPrimaryMask());
-		wrapper.writeBytes(this.chunkData.getData());
+		final ByteBuf data = this.chunkData.getData();
+		wrapper.writeVarInt(data.readableBytes());
+		buffer.writeBytes(data, data.readerIndex(), data.readableBytes());
+	}
+
+	@Override
+	public int refCnt() {
+		return this.chunkData.refCnt();
+	}
+
+	@Override
+	public PacketOutChunkData retain() {
+		this.chunkData.retain();
+		return this;
+	}
+
+	@Override
+	public PacketOutChunkData retain(final int increment) {
+		this.chunkData.retain(increment);
+		return this;
+	}
+
+	@Override
+	public PacketOutChunkData touch() {
+		this.chunkData.touch();
+		return this;
+	}
+
+	@Override
+	public PacketOutChunkData touch(final Object hint) {
+		this.chunkData.touch(hint);
+		return this;
+	}
+
+	@Override
+	public boolean release() {
+		return this.chunkData.release();
+	}
+
+	@Override
+	public boolean release(final int decrement) {
+		return this.chunkData.release(decrement);
 	}
 	
+	/**
+	 * Chunk data encoded into a pooled buffer. The message starts with a
+	 * reference count of one, owned by whoever created it.
+	 */
 	@Data
-	public static class ChunkDataMessage {
+	public static class ChunkDataMessage implements ReferenceCounted {
 	    private final int x, z;
 	    private final boolean continuous;
 	    private final int primaryMask;
-	    private final byte[] data;
+	    private final ByteBuf data;
 
 	    public static ChunkDataMessage empty(int x, int z) {
-	        return new ChunkDataMessage(x, z, true, 0, new byte[0]);
+	        return new ChunkDataMessage(x, z, true, 0, Unpooled.EMPTY_BUFFER);
+	    }
+
+	    @Override
+	    public int refCnt() {
+	        return data.refCnt();
+	    }
+
+	    @Override
+	    public ChunkDataMessage retain() {
+	        data.retain();
+	        return this;
+	    }
+
+	    @Override
+	    public ChunkDataMessage retain(int increment) {
+	        data.retain(increment);
+	        return this;
+	    }
+
+	    @Override
+	    public ChunkDataMessage touch() {
+	        data.touch();
+	        return this;
+	    }
+
+	    @Override
+	    public ChunkDataMessage touch(Object hint) {
+	        data.touch(hint);
+	        return this;
+	    }
+
+	    @Override
+	    public boolean release() {
+	        return data.release();
+	    }
+
+	    @Override
+	    public boolean release(int decrement) {
+	        return data.release(decrement);
 	    }
 	}
 	
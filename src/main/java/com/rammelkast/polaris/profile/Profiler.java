@@ -18,6 +18,7 @@ package com.rammelkast.polaris.profile;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.concurrent.atomic.LongAdder;
 
 import lombok.Getter;
 
@@ -26,6 +27,19 @@ public final class Profiler {
 	private final Runtime runtime = Runtime.getRuntime();
 	@Getter
 	private final ThreadBenchmarker threadBenchmarker = new ThreadBenchmarker();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final RateCounter flushes = new RateCounter();
+	private final LongAdder flushedPackets = new LongAdder();
+	private final RateCounter ticks = new RateCounter();
+	private final LongAdder tickOverruns = new LongAdder();
+	private volatile double averageTickTime;
+	private volatile long longestTick;
+	private final LongAdder queuedChunks = new LongAdder();
+	private final LongAdder fullViews = new LongAdder();
+	private final LongAdder fullViewTime = new LongAdder();
+	private final RateCounter evictions = new RateCounter();
+	private volatile int residentChunks;
 	
 	public void start() {
 		this.threadBenchmarker.enable();
@@ -67,4 +81,204 @@ public final class Profiler {
 		return new BigDecimal(((float) (totalMemory) / (1024 * 1024))).setScale(1, RoundingMode.HALF_UP);
 	}
 	
+	/**
+	 * Records a packet that passed through the compression stage
+	 * 
+	 * @param uncompressed size of the packet before compression
+	 * @param compressed size of the packet after compression
+	 */
+	public void recordCompression(final int uncompressed, final int compressed) {
+		this.uncompressedBytes.add(uncompressed);
+		this.compressedBytes.add(compressed);
+	}
+	
+	/**
+	 * Gets the total amount of bytes that entered the compression stage
+	 * 
+	 * @return total bytes before compression
+	 */
+	public long getUncompressedBytes() {
+		return this.uncompressedBytes.sum();
+	}
+	
+	/**
+	 * Gets the total amount of bytes that left the compression stage
+	 * 
+	 * @return total bytes after compression
+	 */
+	public long getCompressedBytes() {
+		return this.compressedBytes.sum();
+	}
+	
+	/**
+	 * Records a single network flush
+	 * 
+	 * @param packets amount of packets written before the flush
+	 */
+	public void recordFlush(final int packets) {
+		this.flushes.increment();
+		this.flushedPackets.add(packets);
+	}
+	
+	/**
+	 * Gets the average amount of packets written per network flush
+	 * 
+	 * @return average packets per flush
+	 */
+	public double getPacketsPerFlush() {
+		final long flushes = this.flushes.getTotal();
+		return flushes == 0 ? 0 : (double) this.flushedPackets.sum() / flushes;
+	}
+	
+	/**
+	 * Gets the amount of network flushes per second, over all clients
+	 * 
+	 * @return flushes per second
+	 */
+	public double getFlushesPerSecond() {
+		return this.flushes.getRate();
+	}
+	
+	/**
+	 * Records a single server tick. Only called from the tick thread.
+	 * 
+	 * @param duration time the tick took in nanoseconds
+	 * @param overrun whether the tick took longer than its time budget
+	 */
+	public void recordTick(final long duration, final boolean overrun) {
+		this.ticks.increment();
+		this.averageTickTime = this.averageTickTime * 0.95D + (duration / 1000000D) * 0.05D;
+		if (duration > this.longestTick) {
+			this.longestTick = duration;
+		}
+		if (overrun) {
+			this.tickOverruns.increment();
+		}
+	}
+	
+	/**
+	 * Gets the amount of ticks per second over the last second
+	 * 
+	 * @return ticks per second
+	 */
+	public double getTps() {
+		return this.ticks.getRate();
+	}
+	
+	/**
+	 * Gets the moving average of the time spent per tick in milliseconds
+	 * 
+	 * @return milliseconds per tick
+	 */
+	public double getMspt() {
+		return this.averageTickTime;
+	}
+	
+	/**
+	 * Gets the amount of ticks that took longer than their time budget
+	 * 
+	 * @return total tick overruns
+	 */
+	public long getTickOverruns() {
+		return this.tickOverruns.sum();
+	}
+	
+	/**
+	 * Gets the duration of the longest tick in milliseconds
+	 * 
+	 * @return longest tick time
+	 */
+	public double getLongestTick() {
+		return this.longestTick / 1000000D;
+	}
+	
+	/**
+	 * Records chunks entering or leaving the chunk send queues
+	 * 
+	 * @param amount amount of chunks queued, negative if they left the queue
+	 */
+	public void recordChunksQueued(final int amount) {
+		this.queuedChunks.add(amount);
+	}
+	
+	/**
+	 * Gets the amount of chunks waiting to be sent, over all players
+	 * 
+	 * @return chunk send queue depth
+	 */
+	public long getChunkQueueDepth() {
+		return this.queuedChunks.sum();
+	}
+	
+	/**
+	 * Records the time between a player's view changing and all chunks in the
+	 * new view having been sent
+	 * 
+	 * @param duration time to full view in nanoseconds
+	 */
+	public void recordTimeToFullView(final long duration) {
+		this.fullViews.increment();
+		this.fullViewTime.add(duration);
+	}
+	
+	/**
+	 * Gets the average time to full view in milliseconds
+	 * 
+	 * @return average time to full view
+	 */
+	public double getTimeToFullView() {
+		final long views = this.fullViews.sum();
+		return views == 0 ? 0 : this.fullViewTime.sum() / 1000000D / views;
+	}
+	
+	/**
+	 * Records chunks evicted from memory
+	 * 
+	 * @param amount amount of chunks evicted
+	 */
+	public void recordEvictions(final int amount) {
+		this.evictions.add(amount);
+	}
+	
+	/**
+	 * Gets the amount of chunks evicted per second
+	 * 
+	 * @return chunk eviction rate
+	 */
+	public double getEvictionRate() {
+		return this.evictions.getRate();
+	}
+	
+	/**
+	 * Sets the amount of chunks currently loaded
+	 * 
+	 * @param residentChunks resident chunk count
+	 */
+	public void setResidentChunks(final int residentChunks) {
+		this.residentChunks = residentChunks;
+	}
+	
+	/**
+	 * Gets the amount of chunks currently loaded
+	 * 
+	 * @return resident chunk count
+	 */
+	public int getResidentChunks() {
+		return this.residentChunks;
+	}
+	
+	/**
+	 * Summarizes the tick, network and chunk metrics in a single line
+	 * 
+	 * @return the summary
+	 */
+	public String getReport() {
+		return String.format(
+				"%.1f TPS, %.2f mspt (longest %.1f ms, %d overruns), %.1f packets per flush at %.0f flushes/s, "
+						+ "%d chunks queued, %.0f ms to full view, %d chunks loaded, %.1f evicted/s",
+				this.getTps(), this.getMspt(), this.getLongestTick(), this.getTickOverruns(),
+				this.getPacketsPerFlush(), this.getFlushesPerSecond(), this.getChunkQueueDepth(),
+				this.getTimeToFullView(), this.getResidentChunks(), this.getEvictionRate());
+	}
+	
 }
@@ -0,0 +1,99 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.profile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter which can be incremented from any thread and reports how often it
+ * was incremented per second. Counts fall into fixed one second windows, which
+ * are rolled over by whichever call first notices one has ended, so every
+ * caller sees the rate of the same last completed window.
+ */
+public final class RateCounter {
+
+	private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+	private final LongAdder total = new LongAdder();
+	private volatile long windowEnd;
+	private long windowTotal;
+	private volatile double rate;
+
+	public RateCounter() {
+		this(System.nanoTime());
+	}
+
+	RateCounter(final long start) {
+		this.windowEnd = start + WINDOW;
+	}
+
+	public void increment() {
+		this.add(1, System.nanoTime());
+	}
+
+	public void add(final long amount) {
+		this.add(amount, System.nanoTime());
+	}
+
+	void add(final long amount, final long now) {
+		// Rolled first, so the amount counts towards the window it happened in
+		if (now - this.windowEnd >= 0) {
+			this.roll(now);
+		}
+		this.total.add(amount);
+	}
+
+	/**
+	 * Gets the total count since creation
+	 * 
+	 * @return total count
+	 */
+	public long getTotal() {
+		return this.total.sum();
+	}
+
+	/**
+	 * Gets the count per second over the last completed window
+	 * 
+	 * @return count per second
+	 */
+	public double getRate() {
+		return this.getRate(System.nanoTime());
+	}
+
+	double getRate(final long now) {
+		if (now - this.windowEnd >= 0) {
+			this.roll(now);
+		}
+		return this.rate;
+	}
+
+	private synchronized void roll(final long now) {
+		final long overdue = now - this.windowEnd;
+		if (overdue < 0) {
+			return;
+		}
+		final long total = this.total.sum();
+		// Windows that ended after the one being closed had no counts, otherwise
+		// they would have been rolled over already
+		this.rate = overdue >= WINDOW ? 0 : (double) (total - this.windowTotal) * TimeUnit.SECONDS.toNanos(1) / WINDOW;
+		this.windowTotal = total;
+		this.windowEnd += (overdue / WINDOW + 1) * WINDOW;
+	}
+
+}
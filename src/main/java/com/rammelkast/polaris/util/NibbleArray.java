@@ -16,6 +16,9 @@
  */
 package com.rammelkast.polaris.util;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 /**
@@ -24,9 +27,18 @@ import java.util.Arrays;
  * and the odd indices in the most significant bits.
  * <p>
  * For example, [1 5 8 15] is stored as [0x51 0xf8].
+ * <p>
+ * The range operations read and write 16 nibbles at a time as little endian
+ * longs, so nibble {@code i} of a word sits at bits {@code 4 * i}.
  */
 public final class NibbleArray {
 
+    private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int WORD_NIBBLES = 16;
+    private static final long ONES = 0x1111111111111111L;
+    private static final long LOW_NIBBLES = 0x0f0f0f0f0f0f0f0fL;
+    private static final long LANE_BITS = 0x1010101010101010L;
+
     private final byte[] data;
 
     /**
@@ -74,12 +86,7 @@ public final class NibbleArray {
      * @return The value of the nibble at that index.
      */
     public byte get(final int index) {
-        byte val = data[index / 2];
-        if (index % 2 == 0) {
-            return (byte) (val & 0x0f);
-        } else {
-            return (byte) ((val & 0xf0) >> 4);
-        }
+        return (byte) ((data[index >> 1] >> ((index & 1) << 2)) & 0x0f);
     }
 
     /**
@@ -88,15 +95,10 @@ public final class NibbleArray {
      * @param index The nibble index.
      * @param value The new value to store.
      */
-    public void set(final int index, byte value) {
-        value &= 0xf;
-        int half = index / 2;
-        byte previous = data[half];
-        if (index % 2 == 0) {
-            data[half] = (byte) ((previous & 0xf0) | value);
-        } else {
-            data[half] = (byte) ((previous & 0x0f) | (value << 4));
-        }
+    public void set(final int index, final byte value) {
+        final int half = index >> 1;
+        final int shift = (index & 1) << 2;
+        data[half] = (byte) ((data[half] & ~(0x0f << shift)) | ((value & 0x0f) << shift));
     }
 
     /**
@@ -109,6 +111,159 @@ public final class NibbleArray {
         Arrays.fill(data, (byte) ((value << 4) | value));
     }
 
+    /**
+     * Set a range of nibbles to the same value.
+     *
+     * @param from  The first nibble index.
+     * @param to    The index after the last nibble.
+     * @param value The value nibble to fill with.
+     */
+    public void fill(int from, final int to, final byte value) {
+        if ((from & 1) != 0 && from < to) {
+            set(from++, value);
+        }
+        final long pattern = (value & 0x0f) * ONES;
+        for (; from + WORD_NIBBLES <= to; from += WORD_NIBBLES) {
+            WORDS.set(data, from >> 1, pattern);
+        }
+        for (; from < to; from++) {
+            set(from, value);
+        }
+    }
+
+    /**
+     * Copy a range of nibbles from another nibble array, which may be this
+     * one if the ranges do not overlap.
+     *
+     * @param source      The array to copy from.
+     * @param sourceIndex The first nibble to copy.
+     * @param index       The first nibble to copy to.
+     * @param length      The number of nibbles.
+     */
+    public void copy(final NibbleArray source, int sourceIndex, int index, int length) {
+        if ((index & 1) != 0 && length > 0) {
+            set(index++, source.get(sourceIndex++));
+            length--;
+        }
+        if ((sourceIndex & 1) == 0) {
+            // Both byte aligned, the bytes can be copied as they are
+            System.arraycopy(source.data, sourceIndex >> 1, data, index >> 1, length >> 1);
+            final int copied = length & ~1;
+            sourceIndex += copied;
+            index += copied;
+            length -= copied;
+        } else {
+            // Every word is shifted down by one nibble, taking the next nibble from the following byte
+            for (; length >= WORD_NIBBLES && sourceIndex + WORD_NIBBLES < source.size(); length -= WORD_NIBBLES) {
+                final long word = (long) WORDS.get(source.data, sourceIndex >> 1) >>> 4
+                        | (long) (source.data[(sourceIndex >> 1) + 8] & 0x0f) << 60;
+                WORDS.set(data, index >> 1, word);
+                sourceIndex += WORD_NIBBLES;
+                index += WORD_NIBBLES;
+            }
+        }
+        for (; length > 0; length--) {
+            set(index++, source.get(sourceIndex++));
+        }
+    }
+
+    /**
+     * Raise every nibble in a range to the value of the same nibble in
+     * another array, if that one is higher.
+     *
+     * @param other The array to merge with, of the same size.
+     * @param from  The first nibble index.
+     * @param to    The index after the last nibble.
+     */
+    public void max(final NibbleArray other, int from, final int to) {
+        if ((from & 1) != 0 && from < to) {
+            set(from, (byte) Math.max(get(from), other.get(from)));
+            from++;
+        }
+        for (; from + WORD_NIBBLES <= to; from += WORD_NIBBLES) {
+            final int offset = from >> 1;
+            final long a = (long) WORDS.get(data, offset);
+            final long b = (long) WORDS.get(other.data, offset);
+            WORDS.set(data, offset, max(a & LOW_NIBBLES, b & LOW_NIBBLES)
+                    | max(a >>> 4 & LOW_NIBBLES, b >>> 4 & LOW_NIBBLES) << 4);
+        }
+        for (; from < to; from++) {
+            set(from, (byte) Math.max(get(from), other.get(from)));
+        }
+    }
+
+    /**
+     * Lane-wise maximum of two words holding a value of 0 to 15 in the low
+     * half of every byte.
+     */
+    private static long max(final long a, final long b) {
+        // Bit 4 of a lane survives the subtraction only where a >= b
+        final long greaterOrEqual = ((a | LANE_BITS) - b) & LANE_BITS;
+        final long mask = (greaterOrEqual >>> 4) * 0x0f;
+        return (a & mask) | (b & ~mask & LOW_NIBBLES);
+    }
+
+    /**
+     * Find the first nibble in a range which is not zero.
+     *
+     * @param from The first nibble index.
+     * @param to   The index after the last nibble.
+     * @return The index of the nibble, or -1 if all are zero.
+     */
+    public int indexOfNonZero(int from, final int to) {
+        if ((from & 1) != 0 && from < to) {
+            if (get(from) != 0) {
+                return from;
+            }
+            from++;
+        }
+        for (; from + WORD_NIBBLES <= to; from += WORD_NIBBLES) {
+            final long word = (long) WORDS.get(data, from >> 1);
+            if (word != 0) {
+                return from + (Long.numberOfTrailingZeros(word) >> 2);
+            }
+        }
+        for (; from < to; from++) {
+            if (get(from) != 0) {
+                return from;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Count the nibbles in a range which equal the given value.
+     *
+     * @param from  The first nibble index.
+     * @param to    The index after the last nibble.
+     * @param value The value nibble to count.
+     * @return The number of nibbles.
+     */
+    public int count(int from, final int to, byte value) {
+        value &= 0xf;
+        int count = 0;
+        if ((from & 1) != 0 && from < to) {
+            if (get(from) == value) {
+                count++;
+            }
+            from++;
+        }
+        final long pattern = value * ONES;
+        for (; from + WORD_NIBBLES <= to; from += WORD_NIBBLES) {
+            // Fold every differing nibble onto its lowest bit
+            long differs = (long) WORDS.get(data, from >> 1) ^ pattern;
+            differs |= differs >>> 1;
+            differs |= differs >>> 2;
+            count += WORD_NIBBLES - Long.bitCount(differs & ONES);
+        }
+        for (; from < to; from++) {
+            if (get(from) == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * Get the raw bytes of this nibble array. Modifying the returned array
      * will modify the internal representation of this nibble array.
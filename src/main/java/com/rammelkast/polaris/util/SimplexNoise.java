@@ -0,0 +1,123 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.util;
+
+import java.util.Random;
+
+/**
+ * Seeded two dimensional simplex noise, after Stefan Gustavson's reference
+ * implementation. Instances are immutable and can be shared between threads.
+ */
+public final class SimplexNoise {
+
+	private static final double F2 = 0.5D * (Math.sqrt(3D) - 1D);
+	private static final double G2 = (3D - Math.sqrt(3D)) / 6D;
+	private static final int[] GRADIENT_X = { 1, -1, 1, -1, 1, -1, 0, 0 };
+	private static final int[] GRADIENT_Y = { 1, 1, -1, -1, 0, 0, 1, -1 };
+
+	/**
+	 * Shuffled permutation of 0 to 255, repeated once so lookups need no wrapping
+	 */
+	private final short[] permutation = new short[512];
+
+	public SimplexNoise(final long seed) {
+		final short[] values = new short[256];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (short) i;
+		}
+		final Random random = new Random(seed);
+		for (int i = values.length - 1; i > 0; i--) {
+			final int other = random.nextInt(i + 1);
+			final short value = values[i];
+			values[i] = values[other];
+			values[other] = value;
+		}
+		for (int i = 0; i < this.permutation.length; i++) {
+			this.permutation[i] = values[i & 255];
+		}
+	}
+
+	/**
+	 * Gets the noise at the given position
+	 * 
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @return the noise, between -1 and 1
+	 */
+	public double noise(final double x, final double y) {
+		// Skew to the simplex grid to find the cell, then unskew back
+		final double skew = (x + y) * F2;
+		final int i = floor(x + skew);
+		final int j = floor(y + skew);
+		final double unskew = (i + j) * G2;
+		final double x0 = x - (i - unskew);
+		final double y0 = y - (j - unskew);
+
+		// The middle corner depends on which triangle of the cell we are in
+		final int i1 = x0 > y0 ? 1 : 0;
+		final int j1 = 1 - i1;
+		final double x1 = x0 - i1 + G2;
+		final double y1 = y0 - j1 + G2;
+		final double x2 = x0 - 1D + 2D * G2;
+		final double y2 = y0 - 1D + 2D * G2;
+
+		final int ii = i & 255;
+		final int jj = j & 255;
+		return 70D * (this.corner(ii + this.permutation[jj], x0, y0)
+				+ this.corner(ii + i1 + this.permutation[jj + j1], x1, y1)
+				+ this.corner(ii + 1 + this.permutation[jj + 1], x2, y2));
+	}
+
+	/**
+	 * Sums octaves of noise, each at twice the frequency and half the amplitude
+	 * of the one before
+	 * 
+	 * @param x       X coordinate
+	 * @param y       Y coordinate
+	 * @param octaves amount of octaves
+	 * @return the noise, between -1 and 1
+	 */
+	public double fractal(final double x, final double y, final int octaves) {
+		double sum = 0D;
+		double frequency = 1D;
+		double amplitude = 1D;
+		double total = 0D;
+		for (int octave = 0; octave < octaves; octave++) {
+			sum += this.noise(x * frequency, y * frequency) * amplitude;
+			total += amplitude;
+			frequency *= 2D;
+			amplitude *= 0.5D;
+		}
+		return sum / total;
+	}
+
+	private double corner(final int hash, final double x, final double y) {
+		double falloff = 0.5D - x * x - y * y;
+		if (falloff < 0D) {
+			return 0D;
+		}
+		final int gradient = this.permutation[hash] & 7;
+		falloff *= falloff;
+		return falloff * falloff * (GRADIENT_X[gradient] * x + GRADIENT_Y[gradient] * y);
+	}
+
+	private static int floor(final double value) {
+		final int truncated = (int) value;
+		return value < truncated ? truncated - 1 : truncated;
+	}
+
+}
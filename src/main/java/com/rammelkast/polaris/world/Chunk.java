@@ -16,10 +16,24 @@
  */
 package com.rammelkast.polaris.world;
 
+import java.util.Arrays;
+
+import com.rammelkast.polaris.net.packet.Packet;
+import com.rammelkast.polaris.net.packet.PreparedPacket;
+import com.rammelkast.polaris.net.packet.play.out.PacketOutBlockChange;
+import com.rammelkast.polaris.net.packet.play.out.PacketOutChunkData;
 import com.rammelkast.polaris.net.packet.play.out.PacketOutChunkData.ChunkDataMessage;
-import com.rammelkast.polaris.util.NibbleArray;
+import com.rammelkast.polaris.net.packet.play.out.PacketOutMultiBlockChange;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import it.unimi.dsi.fastutil.ints.Int2ObjectArrayMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import lombok.Getter;
+import lombok.Setter;
 
 public final class Chunk {
 	/**
@@ -30,6 +44,23 @@ public final class Chunk {
 	 * Chunk section depth
 	 */
 	private static final int SEC_DEPTH = 16;
+	/**
+	 * Encoded sizes of the types and of one light array of a section
+	 */
+	private static final int TYPES_SIZE = WIDTH * HEIGHT * SEC_DEPTH * 2, LIGHT_SIZE = WIDTH * HEIGHT * SEC_DEPTH / 2;
+	/**
+	 * Change bit of the biomes, next to the bits of the sections
+	 */
+	private static final int BIOMES_CHANGED = 1 << 16;
+	/**
+	 * Maximum amount of differently encoded messages kept per chunk
+	 */
+	private static final int MESSAGE_CACHE_SIZE = 4;
+	/**
+	 * Maximum amount of changed blocks sent as a multi block change, past this
+	 * the changed sections are sent instead
+	 */
+	private static final int MULTI_BLOCK_CHANGE_LIMIT = 64;
 
 	/**
 	 * Chunk world
@@ -59,9 +90,53 @@ public final class Chunk {
 	 * Whether the chunk has been populated by special features. Used in map
 	 * generation.
 	 */
+	@Getter
+	@Setter
 	private boolean populated = false;
-	private boolean updated = true;
-	private ChunkDataMessage cachedDataMessage;
+	/**
+	 * Whether the chunk changed since it was last saved
+	 */
+	@Getter
+	@Setter
+	private volatile boolean dirty = true;
+	/**
+	 * Encoded messages by skylight, continuous and section mask, oldest first
+	 */
+	private final Int2ObjectMap<CachedMessage> messageCache = new Int2ObjectArrayMap<>(MESSAGE_CACHE_SIZE);
+	/**
+	 * Sections changed since the message cache was last used, see
+	 * {@link #BIOMES_CHANGED} for the biomes
+	 */
+	private int changedSections;
+	/**
+	 * Blocks changed since the last {@link #flushChanges()}, as x << 12 | z << 8 | y,
+	 * and the sections they are in. Positions stop being recorded once they
+	 * overflow the multi block change limit.
+	 */
+	private IntSet changedBlocks;
+	private int changedBlockSections;
+	private boolean changedBlocksOverflow;
+	/**
+	 * Light engine that block changes are queued to, set while the chunk is in
+	 * its world
+	 */
+	@Setter
+	private volatile LightEngine lightEngine;
+	/**
+	 * Whether light changes of this chunk are queued to the light engine
+	 */
+	private boolean lightPending;
+	/**
+	 * Sections sent to viewers as a whole while their light was pending, which
+	 * are sent again once it is computed
+	 */
+	private int unlitSections;
+	/**
+	 * The full chunk packet in its final wire form, shared by all viewers. Only
+	 * valid while packetUpdated is false.
+	 */
+	private PreparedPacket cachedPacket;
+	private boolean packetUpdated = true;
 
 	/**
 	 * Creates a new chunk with a specified X and Z coordinate.
@@ -75,6 +150,56 @@ public final class Chunk {
 		this.z = z;
 	}
 
+	/**
+	 * Gets the kind of storage new sections of this chunk use, as configured for
+	 * its world.
+	 *
+	 * @return The section storage type.
+	 */
+	public SectionStorage.Type getStorageType() {
+		return this.world == null ? SectionStorage.Type.HEAP : this.world.getSectionStorage();
+	}
+
+	/**
+	 * Packs chunk coordinates into a single key.
+	 *
+	 * @param x The chunk X coordinate.
+	 * @param z The chunk Z coordinate.
+	 * @return The chunk key.
+	 */
+	public static long getChunkKey(final int x, final int z) {
+		return ((long) x << 32) | (z & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the chunk X coordinate of a chunk key.
+	 *
+	 * @param key The chunk key.
+	 * @return The chunk X coordinate.
+	 */
+	public static int getKeyX(final long key) {
+		return (int) (key >> 32);
+	}
+
+	/**
+	 * Gets the chunk Z coordinate of a chunk key.
+	 *
+	 * @param key The chunk key.
+	 * @return The chunk Z coordinate.
+	 */
+	public static int getKeyZ(final long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Gets the key of this chunk, see {@link #getChunkKey(int, int)}.
+	 *
+	 * @return The chunk key.
+	 */
+	public long getKey() {
+		return getChunkKey(this.x, this.z);
+	}
+
 	/**
 	 * Initialize this chunk from the given sections.
 	 *
@@ -86,6 +211,8 @@ public final class Chunk {
 
 		this.biomes = new byte[WIDTH * HEIGHT];
 		this.heightMap = new byte[WIDTH * HEIGHT];
+		this.changedSections = -1;
+		this.packetUpdated = true;
 	}
 
 	/**
@@ -132,7 +259,7 @@ public final class Chunk {
 	 */
 	public int getType(int x, int z, int y) {
 		ChunkSection section = getSection(y);
-		return section == null ? 0 : (section.types[section.index(x, y, z)] >> 4);
+		return section == null ? 0 : (section.getType(section.index(x, y, z)) >> 4);
 	}
 
 	/**
@@ -159,7 +286,7 @@ public final class Chunk {
 					// y is out of range somehow
 					return;
 				}
-				sections[idx] = section = new ChunkSection();
+				sections[idx] = section = new ChunkSection(this.getStorageType().create());
 			}
 		}
 
@@ -169,45 +296,339 @@ public final class Chunk {
 
 		// update the air count and height map
 		int index = section.index(x, y, z);
+		final int previousType = section.getType(index) >> 4;
 		int heightIndex = z * WIDTH + x;
 		if (type == 0) {
-			if (section.types[index] != 0) {
+			if (section.getType(index) != 0) {
 				section.count--;
 			}
-			if (heightMap[heightIndex] == y + 1) {
+			if ((heightMap[heightIndex] & 0xff) == y + 1) {
 				// erased just below old height map -> lower
 				heightMap[heightIndex] = (byte) lowerHeightMap(x, y, z);
 			}
 		} else {
-			if (section.types[index] == 0) {
+			if (section.getType(index) == 0) {
 				section.count++;
 			}
-			if (heightMap[heightIndex] <= y) {
+			if ((heightMap[heightIndex] & 0xff) <= y) {
 				// placed between old height map and top -> raise
 				heightMap[heightIndex] = (byte) Math.min(y + 1, 255);
 			}
 		}
 		// update the type - also sets metadata to 0
-		section.types[index] = (char) (type << 4);
+		section.setType(index, (char) (type << 4));
+
+		this.changedSections |= 1 << (y >> 4);
+		this.packetUpdated = true;
+		this.dirty = true;
+		recordChange(x, y, z);
+		final LightEngine engine = this.lightEngine;
+		if (engine != null && engine.queueUpdate(this, x, y, z, previousType, type)) {
+			this.lightPending = true;
+		}
 
 		if (type == 0 && section.count == 0) {
 			// destroy the empty section
 			sections[y / SEC_DEPTH] = null;
+		}
+	}
+
+	/**
+	 * Fills a box within this chunk with one block. Layers covering the whole
+	 * chunk are filled as a single range per section, and counts and height map
+	 * are updated once per section and column rather than per block.
+	 *
+	 * @param minX The lowest X coordinate.
+	 * @param minY The lowest Y coordinate.
+	 * @param minZ The lowest Z coordinate.
+	 * @param maxX The highest X coordinate, inclusive.
+	 * @param maxY The highest Y coordinate, inclusive.
+	 * @param maxZ The highest Z coordinate, inclusive.
+	 * @param type The type.
+	 * @param meta The metadata.
+	 */
+	public synchronized void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int type, int meta) {
+		if (type < 0 || type > 0xfff)
+			throw new IllegalArgumentException("Block type out of range: " + type);
+		if (meta < 0 || meta >= 16)
+			throw new IllegalArgumentException("Metadata out of range: " + meta);
+		if (minX < 0 || minZ < 0 || maxX >= WIDTH || maxZ >= HEIGHT)
+			throw new IndexOutOfBoundsException("Box (x=" + minX + ".." + maxX + ",z=" + minZ + ".." + maxZ + ") out of chunk bounds");
+		minY = Math.max(minY, 0);
+		maxY = Math.min(maxY, DEPTH - 1);
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return;
+		}
+
+		final char value = (char) (type == 0 ? 0 : type << 4 | meta);
+		final boolean layers = minX == 0 && minZ == 0 && maxX == WIDTH - 1 && maxZ == HEIGHT - 1;
+		int sectionMask = 0;
+		for (int sy = minY >> 4; sy <= maxY >> 4; ++sy) {
+			ChunkSection section = sections[sy];
+			if (section == null) {
+				if (type == 0) {
+					continue;
+				}
+				sections[sy] = section = new ChunkSection(this.getStorageType().create());
+			}
+			final SectionStorage storage = section.getStorage();
+			final int bottom = Math.max(minY, sy << 4) & 0xf;
+			final int top = Math.min(maxY, (sy << 4) | 0xf) & 0xf;
+			if (layers) {
+				// whole layers are a single range, up to the entire section
+				storage.fillTypes(bottom << 8, (top + 1) << 8, value);
+			} else {
+				for (int y = bottom; y <= top; ++y) {
+					for (int z = minZ; z <= maxZ; ++z) {
+						final int row = y << 8 | z << 4;
+						storage.fillTypes(row + minX, row + maxX + 1, value);
+					}
+				}
+			}
+			section.recount();
+			if (section.count == 0) {
+				sections[sy] = null;
+			}
+			sectionMask |= 1 << sy;
+		}
+		if (sectionMask == 0) {
 			return;
 		}
-		this.updated = true;
+
+		for (int x = minX; x <= maxX; ++x) {
+			for (int z = minZ; z <= maxZ; ++z) {
+				final int heightIndex = z * WIDTH + x;
+				final int height = heightMap[heightIndex] & 0xff;
+				if (type != 0) {
+					if (height <= maxY) {
+						heightMap[heightIndex] = (byte) Math.min(maxY + 1, 255);
+					}
+				} else if (height > minY && height <= maxY + 1) {
+					heightMap[heightIndex] = (byte) lowerHeightMap(x, minY, z);
+				}
+			}
+		}
+
+		if ((maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1) <= MULTI_BLOCK_CHANGE_LIMIT) {
+			for (int y = minY; y <= maxY; ++y) {
+				for (int z = minZ; z <= maxZ; ++z) {
+					for (int x = minX; x <= maxX; ++x) {
+						recordChange(x, y, z);
+					}
+				}
+			}
+		} else {
+			recordSectionChange(sectionMask);
+		}
+		this.changedSections |= sectionMask;
+		this.packetUpdated = true;
+		this.dirty = true;
+		queueRelight();
 	}
 
 	/**
-	 * Scan downwards to determine the new height map value.
+	 * Copies a row of types and metadata (type << 4 | metadata) along the X axis
+	 * into an array.
+	 *
+	 * @param x The first X coordinate.
+	 * @param y The Y coordinate.
+	 * @param z The Z coordinate.
+	 * @param dest The array to copy to.
+	 * @param offset The position in the array.
+	 * @param length The amount of blocks.
+	 */
+	public synchronized void getTypes(int x, int y, int z, char[] dest, int offset, int length) {
+		ChunkSection section = getSection(y);
+		if (section == null) {
+			Arrays.fill(dest, offset, offset + length, (char) 0);
+			return;
+		}
+		if (x + length > WIDTH)
+			throw new IndexOutOfBoundsException("Row (x=" + x + ",length=" + length + ") out of chunk bounds");
+		section.getStorage().getTypes(section.index(x, y, z), dest, offset, length);
+	}
+
+	/**
+	 * Sets a row of types and metadata (type << 4 | metadata) along the X axis
+	 * from an array, as copied by {@link #getTypes(int, int, int, char[], int, int)}.
+	 *
+	 * @param x The first X coordinate.
+	 * @param y The Y coordinate.
+	 * @param z The Z coordinate.
+	 * @param src The array to copy from.
+	 * @param offset The position in the array.
+	 * @param length The amount of blocks.
+	 */
+	public synchronized void setTypes(int x, int y, int z, char[] src, int offset, int length) {
+		if (y < 0 || y >= DEPTH || x < 0 || x + length > WIDTH)
+			throw new IndexOutOfBoundsException("Row (x=" + x + ",y=" + y + ",length=" + length + ") out of chunk bounds");
+		final int sy = y >> 4;
+		ChunkSection section = sections[sy];
+		if (section == null) {
+			boolean empty = true;
+			for (int i = 0; i < length && empty; ++i) {
+				empty = src[offset + i] == 0;
+			}
+			if (empty) {
+				return;
+			}
+			sections[sy] = section = new ChunkSection(this.getStorageType().create());
+		}
+
+		final int index = section.index(x, y, z);
+		final char[] previous = new char[length];
+		section.getStorage().getTypes(index, previous, 0, length);
+		section.getStorage().setTypes(index, src, offset, length);
+		for (int i = 0; i < length; ++i) {
+			final boolean solid = src[offset + i] != 0;
+			if (solid == (previous[i] != 0)) {
+				continue;
+			}
+			final int heightIndex = z * WIDTH + x + i;
+			section.setOccupied(index + i, solid);
+			if (solid) {
+				section.count++;
+				if ((heightMap[heightIndex] & 0xff) <= y) {
+					heightMap[heightIndex] = (byte) Math.min(y + 1, 255);
+				}
+			} else {
+				section.count--;
+				if ((heightMap[heightIndex] & 0xff) == y + 1) {
+					heightMap[heightIndex] = (byte) lowerHeightMap(x + i, y, z);
+				}
+			}
+		}
+		for (int i = 0; i < length; ++i) {
+			recordChange(x + i, y, z);
+		}
+
+		if (section.count == 0) {
+			sections[sy] = null;
+		}
+		this.changedSections |= 1 << sy;
+		this.packetUpdated = true;
+		this.dirty = true;
+		queueRelight();
+	}
+
+	/**
+	 * Sets all types of a section at once, as generators do. The height map is
+	 * left to the caller.
+	 *
+	 * @param sy The section index, y >> 4.
+	 * @param types The types and metadata (type << 4 | metadata) in index order.
+	 */
+	public synchronized void setSectionTypes(int sy, char[] types) {
+		ChunkSection section = sections[sy];
+		if (section == null) {
+			sections[sy] = section = new ChunkSection(this.getStorageType().create());
+		}
+		section.getStorage().setTypes(0, types, 0, SectionStorage.SIZE);
+		section.recount();
+		if (section.count == 0) {
+			sections[sy] = null;
+		}
+		recordSectionChange(1 << sy);
+		this.changedSections |= 1 << sy;
+		this.packetUpdated = true;
+		this.dirty = true;
+		queueRelight();
+	}
+
+	/**
+	 * Copies a section of this chunk.
+	 *
+	 * @param sy The section index, y >> 4.
+	 * @return The copy, or null if the section is empty.
+	 */
+	public synchronized ChunkSection getSectionCopy(int sy) {
+		final ChunkSection section = sections[sy];
+		return section == null ? null : section.snapshot();
+	}
+
+	/**
+	 * Replaces a section of this chunk, for example by one copied from another
+	 * chunk, and updates the height map.
+	 *
+	 * @param sy The section index, y >> 4.
+	 * @param section The section, or null to clear it.
+	 */
+	public synchronized void setSection(int sy, ChunkSection section) {
+		sections[sy] = section == null || section.count == 0 ? null : section;
+		automaticHeightMap();
+		recordSectionChange(1 << sy);
+		this.changedSections |= 1 << sy;
+		this.packetUpdated = true;
+		this.dirty = true;
+		queueRelight();
+	}
+
+	/**
+	 * Marks sections whose light was computed by the light engine, so saves and
+	 * new viewers get it. Viewers relight block changes themselves, so only the
+	 * sections they were sent as a whole before their light was computed are
+	 * sent to them again. Called by the light engine with the chunk locked.
+	 *
+	 * @param sectionMask The sections whose light changed, may be 0.
+	 * @return Whether sections have to be sent to viewers again.
+	 */
+	synchronized boolean lightChanged(int sectionMask) {
+		this.lightPending = false;
+		if (sectionMask != 0) {
+			this.changedSections |= sectionMask;
+			this.packetUpdated = true;
+			this.dirty = true;
+		}
+		final int unlit = this.unlitSections;
+		if (unlit == 0) {
+			return false;
+		}
+		this.unlitSections = 0;
+		recordSectionChange(unlit);
+		return true;
+	}
+
+	/**
+	 * Checks whether light changes of this chunk are queued to the light engine
+	 * and not applied yet.
+	 *
+	 * @return Whether light changes are pending.
+	 */
+	synchronized boolean isLightPending() {
+		return this.lightPending;
+	}
+
+	private void queueRelight() {
+		final LightEngine engine = this.lightEngine;
+		if (engine != null) {
+			engine.queueRelight(this);
+			this.lightPending = true;
+		}
+	}
+
+	/**
+	 * Find the new height map value below y, skipping empty sections and
+	 * taking the highest block of a column from the section's column masks.
 	 */
 	private int lowerHeightMap(int x, int y, int z) {
-		for (--y; y >= 0; --y) {
-			if (getType(x, z, y) != 0) {
-				break;
+		y = Math.min(y, DEPTH);
+		if (y <= 0) {
+			return 0;
+		}
+		final int column = z << 4 | x;
+		// only the blocks below y count in its own section
+		int below = (2 << ((y - 1) & 0xf)) - 1;
+		for (int sy = (y - 1) >> 4; sy >= 0; --sy) {
+			final ChunkSection section = sections[sy];
+			if (section != null) {
+				final int occupied = section.columns[column] & below;
+				if (occupied != 0) {
+					return (sy << 4) + 32 - Integer.numberOfLeadingZeros(occupied);
+				}
 			}
+			below = 0xffff;
 		}
-		return y + 1;
+		return 0;
 	}
 
 	/**
@@ -220,7 +641,7 @@ public final class Chunk {
 	 */
 	public int getMetaData(int x, int z, int y) {
 		ChunkSection section = getSection(y);
-		return section == null ? 0 : section.types[section.index(x, y, z)] & 0xF;
+		return section == null ? 0 : section.getType(section.index(x, y, z)) & 0xF;
 	}
 
 	/**
@@ -238,11 +659,99 @@ public final class Chunk {
 		if (section == null)
 			return; // can't set metadata on an empty section
 		int index = section.index(x, y, z);
-		int type = section.types[index];
+		int type = section.getType(index);
 		if (type == 0)
 			return; // can't set metadata on air
-		section.types[index] = (char) ((type & 0xfff0) | metaData);
-		this.updated = true;
+		section.setType(index, (char) ((type & 0xfff0) | metaData));
+		this.changedSections |= 1 << (y >> 4);
+		this.packetUpdated = true;
+		this.dirty = true;
+		recordChange(x, y, z);
+	}
+
+	private void recordChange(int x, int y, int z) {
+		this.changedBlockSections |= 1 << (y >> 4);
+		if (this.changedBlocksOverflow) {
+			return;
+		}
+		if (this.changedBlocks == null) {
+			this.changedBlocks = new IntOpenHashSet();
+		}
+		this.changedBlocks.add(x << 12 | z << 8 | y);
+		if (this.changedBlocks.size() > MULTI_BLOCK_CHANGE_LIMIT) {
+			this.changedBlocksOverflow = true;
+			this.changedBlocks = null;
+		}
+	}
+
+	/**
+	 * Records a change of whole sections, which is always sent as the sections.
+	 */
+	private void recordSectionChange(int sectionMask) {
+		this.changedBlockSections |= sectionMask;
+		this.changedBlocksOverflow = true;
+		this.changedBlocks = null;
+	}
+
+	/**
+	 * Builds a packet bringing viewers up to date with the blocks changed since
+	 * the last call, and forgets those changes. A single change is sent as a
+	 * block change, a few as a multi block change and more as the changed
+	 * sections, which are taken from the message cache.
+	 *
+	 * @return The packet, or null if no blocks changed. Reference counted packets
+	 *         hold a reference owned by the caller.
+	 */
+	public synchronized Packet flushChanges() {
+		final int sectionMask = this.changedBlockSections;
+		if (sectionMask == 0) {
+			return null;
+		}
+
+		final Packet packet;
+		final int count = this.changedBlocksOverflow ? 0 : this.changedBlocks.size();
+		if (this.changedBlocksOverflow) {
+			if (this.lightPending) {
+				this.unlitSections |= sectionMask;
+			}
+			// Sections that became empty can only be cleared by sending all of the chunk
+			packet = getSectionMask(false, sectionMask) == sectionMask
+					? new PacketOutChunkData(toMessage(true, false, sectionMask))
+					: ((PreparedPacket) toPacket()).retain();
+		} else if (count == 1) {
+			final int position = this.changedBlocks.iterator().nextInt();
+			packet = new PacketOutBlockChange((this.x << 4) | (position >> 12), position & 0xFF,
+					(this.z << 4) | ((position >> 8) & 0xF), getBlockId(position));
+		} else {
+			final short[] positions = new short[count];
+			final int[] blockIds = new int[count];
+			final IntIterator iterator = this.changedBlocks.iterator();
+			for (int i = 0; i < count; i++) {
+				final int position = iterator.nextInt();
+				positions[i] = (short) position;
+				blockIds[i] = getBlockId(position);
+			}
+			packet = new PacketOutMultiBlockChange(this.x, this.z, positions, blockIds);
+		}
+		clearChanges();
+		return packet;
+	}
+
+	/**
+	 * Forgets the blocks changed since the last {@link #flushChanges()}, for
+	 * example because nobody was viewing this chunk yet.
+	 */
+	public synchronized void clearChanges() {
+		// Most chunks are rarely edited, so the set is not kept around
+		this.changedBlockSections = 0;
+		this.changedBlocks = null;
+		this.changedBlocksOverflow = false;
+	}
+
+	private int getBlockId(int position) {
+		final int y = position & 0xFF;
+		final ChunkSection section = getSection(y);
+		return section == null ? 0 : section.getType(section.index(position >> 12, y, (position >> 8) & 0xF));
 	}
 
 	/**
@@ -255,7 +764,7 @@ public final class Chunk {
 	 */
 	public byte getSkyLight(int x, int z, int y) {
 		ChunkSection section = getSection(y);
-		return section == null ? 0 : section.skyLight.get(section.index(x, y, z));
+		return section == null ? 0 : section.getSkyLight(section.index(x, y, z));
 	}
 
 	/**
@@ -270,7 +779,10 @@ public final class Chunk {
 		ChunkSection section = getSection(y);
 		if (section == null)
 			return; // can't set light on an empty section
-		section.skyLight.set(section.index(x, y, z), (byte) skyLight);
+		section.setSkyLight(section.index(x, y, z), (byte) skyLight);
+		this.changedSections |= 1 << (y >> 4);
+		this.packetUpdated = true;
+		this.dirty = true;
 	}
 
 	/**
@@ -283,7 +795,7 @@ public final class Chunk {
 	 */
 	public byte getBlockLight(int x, int z, int y) {
 		ChunkSection section = getSection(y);
-		return section == null ? 0 : section.blockLight.get(section.index(x, y, z));
+		return section == null ? 0 : section.getBlockLight(section.index(x, y, z));
 	}
 
 	/**
@@ -298,7 +810,10 @@ public final class Chunk {
 		ChunkSection section = getSection(y);
 		if (section == null)
 			return; // can't set light on an empty section
-		section.blockLight.set(section.index(x, y, z), (byte) blockLight);
+		section.setBlockLight(section.index(x, y, z), (byte) blockLight);
+		this.changedSections |= 1 << (y >> 4);
+		this.packetUpdated = true;
+		this.dirty = true;
 	}
 
 	/**
@@ -325,6 +840,9 @@ public final class Chunk {
 		if (biomes == null)
 			return;
 		biomes[z * WIDTH + x] = (byte) biome;
+		this.changedSections |= BIOMES_CHANGED;
+		this.packetUpdated = true;
+		this.dirty = true;
 	}
 
 	/**
@@ -340,6 +858,9 @@ public final class Chunk {
 			throw new IllegalArgumentException("Biomes array not of length " + biomes.length);
 		}
 		System.arraycopy(newBiomes, 0, biomes, 0, biomes.length);
+		this.changedSections |= BIOMES_CHANGED;
+		this.packetUpdated = true;
+		this.dirty = true;
 	}
 
 	/**
@@ -370,6 +891,7 @@ public final class Chunk {
 		for (int i = 0; i < heightMap.length; ++i) {
 			heightMap[i] = (byte) newHeightMap[i];
 		}
+		this.dirty = true;
 	}
 
 	/**
@@ -419,6 +941,53 @@ public final class Chunk {
         return toMessage(true);
     }
 
+    /**
+     * Gets a packet which streams this entire chunk to a client. The encoded,
+     * compressed and framed bytes are cached until the chunk changes, so
+     * sending the chunk to many players only encodes it once. The packet is owned
+     * by this chunk, clients retain it while it is queued.
+     *
+     * @return The chunk packet.
+     */
+    public synchronized Packet toPacket() {
+        if (this.cachedPacket == null || this.packetUpdated) {
+            if (this.cachedPacket != null) {
+                this.cachedPacket.release();
+            }
+            // Only the sections changed since the last time are encoded again
+            this.cachedPacket = new PreparedPacket(new PacketOutChunkData(toMessage(true)));
+            this.packetUpdated = false;
+        }
+        return this.cachedPacket;
+    }
+
+    /**
+     * Estimates the memory used by this chunk, on or off heap, including its
+     * cached messages and packet.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long getMemoryUsage() {
+        long size = 128 + 2 * (16 + WIDTH * HEIGHT); // object, biomes and height map
+        if (this.sections != null) {
+            size += 16 + 4 * this.sections.length;
+            for (final ChunkSection section : this.sections) {
+                if (section != null) {
+                    size += section.getMemoryUsage();
+                }
+            }
+        }
+        synchronized (this) {
+            if (this.cachedPacket != null) {
+                size += this.cachedPacket.getFrameSize();
+            }
+            for (final CachedMessage cached : this.messageCache.values()) {
+                size += cached.message.getData().capacity();
+            }
+        }
+        return size;
+    }
+
     // ======== Helper functions ========
 
     /**
@@ -434,106 +1003,203 @@ public final class Chunk {
 
     /**
      * Creates a new {@link ChunkDataMessage} which can be sent to a client to stream
-     * parts of this chunk to them.
+     * parts of this chunk to them. Messages are cached per set of arguments and only
+     * the sections changed since are encoded again. The message is owned by this
+     * chunk and may be released once the chunk changes, so callers that keep it must
+     * retain it.
      *
      * @return The {@link ChunkDataMessage}.
      */
-    public ChunkDataMessage toMessage(boolean skylight, boolean entireChunk, int sectionBitmask) {
-        if (this.cachedDataMessage != null && !this.updated) {
-            return this.cachedDataMessage;
+    public synchronized ChunkDataMessage toMessage(boolean skylight, boolean entireChunk, int sectionBitmask) {
+        sectionBitmask = getSectionMask(entireChunk, sectionBitmask);
+        if (this.changedSections != 0) {
+            for (final CachedMessage cached : this.messageCache.values()) {
+                cached.changed |= this.changedSections;
+            }
+            this.changedSections = 0;
         }
 
-        // filter sectionBitmask based on actual chunk contents
-        int sectionCount;
-        if (sections == null) {
-            sectionBitmask = 0;
-            sectionCount = 0;
-        } else {
-            final int maxBitmask = (1 << sections.length) - 1;
-            if (entireChunk) {
-                sectionBitmask = maxBitmask;
-                sectionCount = sections.length;
-            } else {
-                sectionBitmask &= maxBitmask;
-                sectionCount = countBits(sectionBitmask);
+        final int key = sectionBitmask | (skylight ? 1 << 16 : 0) | (entireChunk ? 1 << 17 : 0);
+        CachedMessage cached = this.messageCache.get(key);
+        if (cached == null) {
+            if (this.messageCache.size() >= MESSAGE_CACHE_SIZE) {
+                final int oldest = this.messageCache.keySet().iterator().nextInt();
+                this.messageCache.remove(oldest).message.release();
             }
+            cached = new CachedMessage(encode(skylight, entireChunk, sectionBitmask));
+            this.messageCache.put(key, cached);
+        } else if ((cached.changed & (sectionBitmask | (entireChunk ? BIOMES_CHANGED : 0))) != 0) {
+            cached.message = reencode(cached.message, cached.changed, skylight);
+        }
+        cached.changed = 0;
+        return cached.message;
+    }
 
-            for (int i = 0; i < sections.length; ++i) {
-                if (sections[i] == null || sections[i].count == 0) {
-                    // remove empty sections from bitmask
-                    sectionBitmask &= ~(1 << i);
-                    sectionCount--;
+    /**
+     * Encodes the given sections into a new message.
+     */
+    private ChunkDataMessage encode(boolean skylight, boolean entireChunk, int sectionBitmask) {
+        final int size = getDataSize(sectionBitmask, skylight, entireChunk);
+        final ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(size, size);
+        try {
+            writeData(buffer, sectionBitmask, skylight, entireChunk);
+        } catch (RuntimeException ex) {
+            buffer.release();
+            throw ex;
+        }
+
+        if (buffer.writerIndex() != size) {
+            buffer.release();
+            throw new IllegalStateException("only wrote " + buffer.writerIndex() + " out of expected " + size + " bytes");
+        }
+
+        return new ChunkDataMessage(x, z, entireChunk, sectionBitmask, buffer);
+    }
+
+    /**
+     * Encodes the changed sections of a message again, leaving the bytes of the
+     * others as they are. A message still referenced by packets in flight is
+     * copied first.
+     *
+     * @param message The message to update.
+     * @param changed The changed sections, see {@link #changedSections}.
+     * @param skylight Whether the message includes skylight data.
+     * @return The updated message.
+     */
+    private ChunkDataMessage reencode(ChunkDataMessage message, int changed, boolean skylight) {
+        ByteBuf data = message.getData();
+        if (data.refCnt() != 1) {
+            final ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(data.capacity(), data.capacity());
+            copy.writeBytes(data, data.readerIndex(), data.readableBytes());
+            message.release();
+            message = new ChunkDataMessage(x, z, message.isContinuous(), message.getPrimaryMask(), copy);
+            data = copy;
+        }
+
+        // Sections are laid out as in writeData: all types, all block light, all sky light
+        final int mask = message.getPrimaryMask();
+        final int count = countBits(mask);
+        final int end = data.writerIndex();
+        int ordinal = 0;
+        for (int i = 0; i < sections.length; ++i) {
+            if ((mask & (1 << i)) == 0) {
+                continue;
+            }
+            if ((changed & (1 << i)) != 0) {
+                final SectionStorage storage = sections[i].getStorage();
+                data.writerIndex(ordinal * TYPES_SIZE);
+                storage.writeTypes(data);
+                data.writerIndex(count * TYPES_SIZE + ordinal * LIGHT_SIZE);
+                storage.writeBlockLight(data);
+                if (skylight) {
+                    data.writerIndex(count * (TYPES_SIZE + LIGHT_SIZE) + ordinal * LIGHT_SIZE);
+                    storage.writeSkyLight(data);
                 }
             }
+            ordinal++;
+        }
+        if (message.isContinuous() && (changed & BIOMES_CHANGED) != 0) {
+            data.writerIndex(end - biomes.length);
+            data.writeBytes(biomes);
         }
+        data.writerIndex(end);
+        return message;
+    }
 
-        // calculate how big the data will need to be
-        int byteSize = 0;
+    /**
+     * Releases the cached message and packet of this chunk, for example when
+     * it is unloaded. They are rebuilt when next requested.
+     */
+    public synchronized void releaseCache() {
+        for (final CachedMessage cached : this.messageCache.values()) {
+            cached.message.release();
+        }
+        this.messageCache.clear();
+        if (this.cachedPacket != null) {
+            this.cachedPacket.release();
+            this.cachedPacket = null;
+        }
+    }
 
-        if (sections != null) {
-            final int numBlocks = WIDTH * HEIGHT * SEC_DEPTH;
-            int sectionSize = numBlocks * 5 / 2;  // (data and metadata combo) * 2 + blockLight/2
-            if (skylight) {
-                sectionSize += numBlocks / 2;  // + skyLight/2
+    /**
+     * Filters a section bitmask down to the sections that hold blocks.
+     *
+     * @param entireChunk Whether to include all sections.
+     * @param sectionBitmask The requested sections, ignored for entire chunks.
+     * @return The bitmask of sections to send.
+     */
+    private int getSectionMask(boolean entireChunk, int sectionBitmask) {
+        if (sections == null) {
+            return 0;
+        }
+        final int maxBitmask = (1 << sections.length) - 1;
+        sectionBitmask = entireChunk ? maxBitmask : sectionBitmask & maxBitmask;
+        for (int i = 0; i < sections.length; ++i) {
+            if (sections[i] == null || sections[i].count == 0) {
+                // remove empty sections from bitmask
+                sectionBitmask &= ~(1 << i);
             }
-            byteSize += sectionCount * sectionSize;
         }
+        return sectionBitmask;
+    }
 
+    /**
+     * Calculates the size of the chunk data written by
+     * {@link #writeData(ByteBuf, int, boolean, boolean)}.
+     *
+     * @return The size in bytes.
+     */
+    private int getDataSize(int sectionBitmask, boolean skylight, boolean entireChunk) {
+        final int numBlocks = WIDTH * HEIGHT * SEC_DEPTH;
+        int sectionSize = numBlocks * 5 / 2;  // (data and metadata combo) * 2 + blockLight/2
+        if (skylight) {
+            sectionSize += numBlocks / 2;  // + skyLight/2
+        }
+        int byteSize = countBits(sectionBitmask) * sectionSize;
         if (entireChunk) {
             byteSize += 256;  // + biomes
         }
+        return byteSize;
+    }
 
-        byte[] tileData = new byte[byteSize];
-        int pos = 0;
-
+    /**
+     * Writes the chunk data as sent to the client straight from the section
+     * storage: the types of all sections, then their block light, their sky light
+     * and finally the biomes.
+     *
+     * @param out The buffer to write to.
+     * @param sectionBitmask The sections to write, see {@link #getSectionMask(boolean, int)}.
+     * @param skylight Whether to include skylight data.
+     * @param entireChunk Whether to include the biomes.
+     */
+    private void writeData(ByteBuf out, int sectionBitmask, boolean skylight, boolean entireChunk) {
         if (sections != null) {
-            // get the list of sections
-            ChunkSection[] sendSections = new ChunkSection[sectionCount];
-            for (int i = 0, j = 0, mask = 1; i < sections.length; ++i, mask <<= 1) {
-                if ((sectionBitmask & mask) != 0) {
-                    sendSections[j++] = sections[i];
+            for (int i = 0; i < sections.length; ++i) {
+                if ((sectionBitmask & (1 << i)) != 0) {
+                    sections[i].getStorage().writeTypes(out);
                 }
             }
-
-            for (ChunkSection sec : sendSections) {
-                for (char t : sec.types) {
-                    tileData[pos++] = (byte) (t & 0xff);
-                    tileData[pos++] = (byte) (t >> 8);
+            for (int i = 0; i < sections.length; ++i) {
+                if ((sectionBitmask & (1 << i)) != 0) {
+                    sections[i].getStorage().writeBlockLight(out);
                 }
             }
-
-            for (ChunkSection sec : sendSections) {
-                byte[] blockLight = sec.blockLight.getRawData();
-                System.arraycopy(blockLight, 0, tileData, pos, blockLight.length);
-                pos += blockLight.length;
-            }
-
             if (skylight) {
-                for (ChunkSection sec : sendSections) {
-                    byte[] skyLight = sec.skyLight.getRawData();
-                    System.arraycopy(skyLight, 0, tileData, pos, skyLight.length);
-                    pos += skyLight.length;
+                for (int i = 0; i < sections.length; ++i) {
+                    if ((sectionBitmask & (1 << i)) != 0) {
+                        sections[i].getStorage().writeSkyLight(out);
+                    }
                 }
             }
         }
 
         // biomes
         if (entireChunk) {
-            for (int i = 0; i < 256; ++i) {
-                tileData[pos++] = biomes[i];
-            }
-        }
-
-        if (pos != byteSize) {
-            throw new IllegalStateException("only wrote " + pos + " out of expected " + byteSize + " bytes");
+            out.writeBytes(biomes);
         }
-
-        this.cachedDataMessage = new ChunkDataMessage(x, z, entireChunk, sectionBitmask, tileData);
-        this.updated = false;
-        return this.cachedDataMessage;
     }
     
-    private int countBits(int v) {
+    private static int countBits(int v) {
         // http://graphics.stanford.edu/~seander/bithacks.html#CountBitsSetKernighan
         int c;
         for (c = 0; v > 0; c++) {
@@ -542,41 +1208,41 @@ public final class Chunk {
         return c;
     }
 
+	/**
+	 * A cached message and the sections changed since it was encoded.
+	 */
+	private static final class CachedMessage {
+		private ChunkDataMessage message;
+		private int changed;
+
+		private CachedMessage(final ChunkDataMessage message) {
+			this.message = message;
+		}
+	}
+
 	/**
 	 * A single cubic section of a chunk, with all data.
 	 */
 	public static final class ChunkSection {
 		private static final int ARRAY_SIZE = WIDTH * HEIGHT * SEC_DEPTH;
 
-		// these probably should be made non-public
-		public final char[] types;
-		public final NibbleArray skyLight;
-		public final NibbleArray blockLight;
+		private final SectionStorage storage;
 		public int count; // amount of non-air blocks
+		// per column (z << 4 | x), bit y is set where the block is not air
+		private final char[] columns = new char[WIDTH * HEIGHT];
 
 		/**
-		 * Create a new, empty ChunkSection.
+		 * Create a new, empty ChunkSection on the heap.
 		 */
 		public ChunkSection() {
-			this.types = new char[ARRAY_SIZE];
-			this.skyLight = new NibbleArray(ARRAY_SIZE);
-			this.blockLight = new NibbleArray(ARRAY_SIZE);
-			this.skyLight.fill((byte) 0xf);
+			this(SectionStorage.Type.HEAP.create());
 		}
 
 		/**
-		 * Create a ChunkSection with the specified chunk data. This ChunkSection
-		 * assumes ownership of the arrays passed in, and they should not be further
-		 * modified.
+		 * Create a ChunkSection backed by the given storage.
 		 */
-		public ChunkSection(final char[] types, final NibbleArray skyLight, final NibbleArray blockLight) {
-			if (types.length != ARRAY_SIZE || skyLight.size() != ARRAY_SIZE || blockLight.size() != ARRAY_SIZE) {
-				throw new IllegalArgumentException("An array length was not " + ARRAY_SIZE + ": " + types.length + " "
-						+ skyLight.size() + " " + blockLight.size());
-			}
-			this.types = types;
-			this.skyLight = skyLight;
-			this.blockLight = blockLight;
+		public ChunkSection(final SectionStorage storage) {
+			this.storage = storage;
 			this.recount();
 		}
 
@@ -591,22 +1257,80 @@ public final class Chunk {
 		}
 
 		/**
-		 * Recount the amount of non-air blocks in the chunk section.
+		 * Get the type and metadata (type << 4 | metadata) at the given index.
+		 */
+		public char getType(final int index) {
+			return this.storage.getType(index);
+		}
+
+		/**
+		 * Set the type and metadata (type << 4 | metadata) at the given index.
+		 * Does not update the block count.
+		 */
+		public void setType(final int index, final char type) {
+			this.storage.setType(index, type);
+			this.setOccupied(index, type != 0);
+		}
+
+		private void setOccupied(final int index, final boolean occupied) {
+			final int bit = 1 << (index >> 8);
+			if (occupied) {
+				this.columns[index & 0xff] |= bit;
+			} else {
+				this.columns[index & 0xff] &= ~bit;
+			}
+		}
+
+		public byte getSkyLight(final int index) {
+			return this.storage.getSkyLight(index);
+		}
+
+		public void setSkyLight(final int index, final byte skyLight) {
+			this.storage.setSkyLight(index, skyLight);
+		}
+
+		public byte getBlockLight(final int index) {
+			return this.storage.getBlockLight(index);
+		}
+
+		public void setBlockLight(final int index, final byte blockLight) {
+			this.storage.setBlockLight(index, blockLight);
+		}
+
+		/**
+		 * Get the storage backing this section.
+		 */
+		public SectionStorage getStorage() {
+			return this.storage;
+		}
+
+		/**
+		 * Recount the amount of non-air blocks in the chunk section, and which
+		 * blocks of each column they are.
 		 */
 		public void recount() {
 			count = 0;
-			for (char type : types) {
-				if (type != 0) {
+			Arrays.fill(this.columns, (char) 0);
+			for (int i = 0; i < ARRAY_SIZE; i++) {
+				if (this.storage.getType(i) != 0) {
 					count++;
+					this.columns[i & 0xff] |= 1 << (i >> 8);
 				}
 			}
 		}
 
+		/**
+		 * Estimate the memory used by this section in bytes.
+		 */
+		public long getMemoryUsage() {
+			return 32 + 16 + this.columns.length * 2 + this.storage.getMemoryUsage();
+		}
+
 		/**
 		 * Take a snapshot of this section which will not reflect future changes.
 		 */
 		public ChunkSection snapshot() {
-			return new ChunkSection(this.types.clone(), this.skyLight.snapshot(), this.blockLight.snapshot());
+			return new ChunkSection(this.storage.copy());
 		}
 	}
 }
@@ -0,0 +1,33 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+/**
+ * Fills chunks that have never been saved before. Called from the chunk I/O
+ * threads and from all cores while the spawn area is prepared, so
+ * implementations must be thread safe.
+ */
+public interface ChunkGenerator {
+
+	/**
+	 * Generates the contents of a chunk
+	 * 
+	 * @param chunk an initialized, empty chunk
+	 */
+	void generate(final Chunk chunk);
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Section storage in a direct buffer outside of the Java heap. The buffer holds
+ * the types as little endian chars, then the block light and then the sky
+ * light, so each of them is written to the client with a single copy. The
+ * memory is released when the storage is garbage collected.
+ */
+public final class DirectSectionStorage implements SectionStorage {
+
+	private static final int BLOCK_LIGHT_OFFSET = SIZE * 2;
+	private static final int SKY_LIGHT_OFFSET = BLOCK_LIGHT_OFFSET + SIZE / 2;
+	private static final int CAPACITY = SKY_LIGHT_OFFSET + SIZE / 2;
+
+	private final ByteBuffer buffer;
+
+	public DirectSectionStorage() {
+		this.buffer = ByteBuffer.allocateDirect(CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = SKY_LIGHT_OFFSET; i < CAPACITY; i += 8) {
+			this.buffer.putLong(i, -1L);
+		}
+	}
+
+	public DirectSectionStorage(final char[] types, final byte[] skyLight, final byte[] blockLight) {
+		if (types.length != SIZE || skyLight.length != SIZE / 2 || blockLight.length != SIZE / 2) {
+			throw new IllegalArgumentException("An array length was not " + SIZE + ": " + types.length + " "
+					+ skyLight.length * 2 + " " + blockLight.length * 2);
+		}
+		this.buffer = ByteBuffer.allocateDirect(CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+		this.buffer.asCharBuffer().put(types);
+		this.buffer.position(BLOCK_LIGHT_OFFSET);
+		this.buffer.put(blockLight);
+		this.buffer.put(skyLight);
+		this.buffer.clear();
+	}
+
+	private DirectSectionStorage(final DirectSectionStorage other) {
+		this.buffer = ByteBuffer.allocateDirect(CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+		this.buffer.put(other.buffer.duplicate().clear());
+		this.buffer.clear();
+	}
+
+	@Override
+	public char getType(final int index) {
+		return this.buffer.getChar(index << 1);
+	}
+
+	@Override
+	public void setType(final int index, final char type) {
+		this.buffer.putChar(index << 1, type);
+	}
+
+	@Override
+	public byte getSkyLight(final int index) {
+		return getNibble(SKY_LIGHT_OFFSET, index);
+	}
+
+	@Override
+	public void setSkyLight(final int index, final byte value) {
+		setNibble(SKY_LIGHT_OFFSET, index, value);
+	}
+
+	@Override
+	public byte getBlockLight(final int index) {
+		return getNibble(BLOCK_LIGHT_OFFSET, index);
+	}
+
+	@Override
+	public void setBlockLight(final int index, final byte value) {
+		setNibble(BLOCK_LIGHT_OFFSET, index, value);
+	}
+
+	@Override
+	public void fillTypes(final int from, final int to, final char type) {
+		for (int i = from; i < to; i++) {
+			this.buffer.putChar(i << 1, type);
+		}
+	}
+
+	@Override
+	public void getTypes(final int from, final char[] dest, final int offset, final int length) {
+		final CharBuffer types = this.buffer.asCharBuffer();
+		types.position(from);
+		types.get(dest, offset, length);
+	}
+
+	@Override
+	public void setTypes(final int from, final char[] src, final int offset, final int length) {
+		final CharBuffer types = this.buffer.asCharBuffer();
+		types.position(from);
+		types.put(src, offset, length);
+	}
+
+	@Override
+	public void writeTypes(final ByteBuf out) {
+		out.writeBytes(this.slice(0, BLOCK_LIGHT_OFFSET));
+	}
+
+	@Override
+	public void writeSkyLight(final ByteBuf out) {
+		out.writeBytes(this.slice(SKY_LIGHT_OFFSET, CAPACITY));
+	}
+
+	@Override
+	public void writeBlockLight(final ByteBuf out) {
+		out.writeBytes(this.slice(BLOCK_LIGHT_OFFSET, SKY_LIGHT_OFFSET));
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return 96 + CAPACITY;
+	}
+
+	@Override
+	public SectionStorage copy() {
+		return new DirectSectionStorage(this);
+	}
+
+	private ByteBuffer slice(final int from, final int to) {
+		final ByteBuffer slice = this.buffer.duplicate();
+		slice.limit(to).position(from);
+		return slice;
+	}
+
+	/**
+	 * Nibbles use the same layout as {@link com.rammelkast.polaris.util.NibbleArray}
+	 */
+	private byte getNibble(final int offset, final int index) {
+		final byte value = this.buffer.get(offset + (index >> 1));
+		return (byte) ((index & 1) == 0 ? value & 0x0f : (value & 0xf0) >> 4);
+	}
+
+	private void setNibble(final int offset, final int index, byte value) {
+		value &= 0xf;
+		final int position = offset + (index >> 1);
+		final byte previous = this.buffer.get(position);
+		if ((index & 1) == 0) {
+			this.buffer.put(position, (byte) ((previous & 0xf0) | value));
+		} else {
+			this.buffer.put(position, (byte) ((previous & 0x0f) | (value << 4)));
+		}
+	}
+
+}
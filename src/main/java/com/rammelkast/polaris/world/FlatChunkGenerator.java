@@ -0,0 +1,34 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+/**
+ * Generates a flat world of bedrock, stone, dirt and grass, with a wool pillar
+ * in the corner of every chunk
+ */
+public final class FlatChunkGenerator implements ChunkGenerator {
+
+	@Override
+	public void generate(final Chunk chunk) {
+		chunk.fill(0, 1, 0, 15, 1, 15, 7, 0);
+		chunk.fill(0, 2, 0, 15, 2, 15, 1, 0);
+		chunk.fill(0, 3, 0, 15, 3, 15, 3, 0);
+		chunk.fill(0, 4, 0, 15, 4, 15, 2, 0);
+		chunk.fill(0, 5, 0, 0, 8, 0, 35, chunk.getX() & 0xF); // wool pillars for chunk marking
+	}
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import com.rammelkast.polaris.util.NibbleArray;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Section storage on the Java heap, with the types in a {@link PalettedStorage}
+ */
+public final class HeapSectionStorage implements SectionStorage {
+
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SIZE * 2]);
+
+	private final PalettedStorage types;
+	private final NibbleArray skyLight;
+	private final NibbleArray blockLight;
+
+	public HeapSectionStorage() {
+		this.types = new PalettedStorage((char) 0);
+		this.skyLight = new NibbleArray(SIZE);
+		this.blockLight = new NibbleArray(SIZE);
+		this.skyLight.fill((byte) 0xf);
+	}
+
+	public HeapSectionStorage(final char[] types, final byte[] skyLight, final byte[] blockLight) {
+		this(new PalettedStorage(types), new NibbleArray(skyLight.clone()), new NibbleArray(blockLight.clone()));
+	}
+
+	private HeapSectionStorage(final PalettedStorage types, final NibbleArray skyLight,
+			final NibbleArray blockLight) {
+		if (skyLight.size() != SIZE || blockLight.size() != SIZE) {
+			throw new IllegalArgumentException(
+					"An array length was not " + SIZE + ": " + skyLight.size() + " " + blockLight.size());
+		}
+		this.types = types;
+		this.skyLight = skyLight;
+		this.blockLight = blockLight;
+	}
+
+	@Override
+	public char getType(final int index) {
+		return this.types.get(index);
+	}
+
+	@Override
+	public void setType(final int index, final char type) {
+		this.types.set(index, type);
+	}
+
+	@Override
+	public byte getSkyLight(final int index) {
+		return this.skyLight.get(index);
+	}
+
+	@Override
+	public void setSkyLight(final int index, final byte value) {
+		this.skyLight.set(index, value);
+	}
+
+	@Override
+	public byte getBlockLight(final int index) {
+		return this.blockLight.get(index);
+	}
+
+	@Override
+	public void setBlockLight(final int index, final byte value) {
+		this.blockLight.set(index, value);
+	}
+
+	@Override
+	public void fillTypes(final int from, final int to, final char type) {
+		this.types.fill(from, to, type);
+	}
+
+	@Override
+	public void getTypes(final int from, final char[] dest, final int offset, final int length) {
+		this.types.get(from, dest, offset, length);
+	}
+
+	@Override
+	public void setTypes(final int from, final char[] src, final int offset, final int length) {
+		this.types.set(from, src, offset, length);
+	}
+
+	@Override
+	public void writeTypes(final ByteBuf out) {
+		out.ensureWritable(SIZE * 2);
+		if (out.hasArray()) {
+			final int start = out.arrayOffset() + out.writerIndex();
+			this.types.writeLittleEndian(out.array(), start);
+			out.writerIndex(out.writerIndex() + SIZE * 2);
+			return;
+		}
+		// Direct buffers take the types in one bulk copy from a scratch array
+		final byte[] scratch = SCRATCH.get();
+		this.types.writeLittleEndian(scratch, 0);
+		out.writeBytes(scratch);
+	}
+
+	@Override
+	public void writeSkyLight(final ByteBuf out) {
+		out.writeBytes(this.skyLight.getRawData());
+	}
+
+	@Override
+	public void writeBlockLight(final ByteBuf out) {
+		out.writeBytes(this.blockLight.getRawData());
+	}
+
+	/**
+	 * Estimates the heap memory used by the types alone
+	 * 
+	 * @return the estimated size in bytes
+	 */
+	public long getTypeMemoryUsage() {
+		return this.types.getMemoryUsage();
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return 32 + this.types.getMemoryUsage() + 2 * (32 + this.skyLight.byteSize());
+	}
+
+	@Override
+	public SectionStorage copy() {
+		return new HeapSectionStorage(this.types.copy(), this.skyLight.snapshot(), this.blockLight.snapshot());
+	}
+
+}
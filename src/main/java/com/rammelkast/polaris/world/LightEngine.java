@@ -0,0 +1,493 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rammelkast.polaris.Polaris;
+import com.rammelkast.polaris.world.Chunk.ChunkSection;
+
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Computes sky and block light by flood filling over the sections of a chunk.
+ * New chunks are lit as a whole on the thread that generates them. Block
+ * changes are queued by the chunk, batched per tick and applied incrementally
+ * on the light thread, under the chunk's lock. Clients relight block changes
+ * themselves, so only sections that were sent as a whole before their light
+ * was computed are sent again.
+ * <p>
+ * Light does not spread across chunk borders yet. Positions in empty sections
+ * have no storage, they count as open sky above the height map and as dark
+ * below it, and never hold block light.
+ */
+public final class LightEngine {
+
+	private static final Logger LOGGER = LogManager.getLogger(LightEngine.class);
+	private static final int MAX_LIGHT = 15;
+	// Past this many queued blocks a chunk is relit as a whole
+	private static final int MAX_QUEUED_UPDATES = 256;
+	private static final int DOWN = 4;
+
+	/**
+	 * Light lost passing through a block, and light given off by it, by type
+	 */
+	private static final byte[] OPACITY = new byte[4096];
+	private static final byte[] EMISSION = new byte[4096];
+
+	static {
+		Arrays.fill(OPACITY, (byte) MAX_LIGHT);
+		for (final int type : new int[] { 0, 6, 20, 26, 27, 28, 30, 31, 32, 37, 38, 39, 40, 50, 51, 55, 59, 63, 64,
+				65, 66, 68, 69, 70, 71, 72, 75, 76, 77, 78, 83, 85, 90, 93, 94, 95, 96, 101, 102, 104, 105, 106, 107,
+				111, 113, 115, 117, 131, 132, 140, 141, 142, 143, 144, 147, 148, 149, 150, 157, 160, 167, 171, 175,
+				176, 177, 183, 184, 185, 186, 187, 188, 189, 190, 191, 192, 193, 194, 195, 196, 197 }) {
+			OPACITY[type] = 0;
+		}
+		OPACITY[18] = 1; // leaves
+		OPACITY[161] = 1;
+		OPACITY[8] = 3; // water
+		OPACITY[9] = 3;
+		OPACITY[79] = 3; // ice
+
+		EMISSION[10] = 15; // lava
+		EMISSION[11] = 15;
+		EMISSION[50] = 14; // torch
+		EMISSION[51] = 15; // fire
+		EMISSION[62] = 13; // lit furnace
+		EMISSION[74] = 9; // lit redstone ore
+		EMISSION[76] = 7; // redstone torch
+		EMISSION[89] = 15; // glowstone
+		EMISSION[90] = 11; // portal
+		EMISSION[91] = 15; // jack o'lantern
+		EMISSION[94] = 9; // powered repeater
+		EMISSION[119] = 15; // end portal
+		EMISSION[124] = 15; // lit redstone lamp
+		EMISSION[130] = 7; // ender chest
+		EMISSION[138] = 15; // beacon
+		EMISSION[169] = 15; // sea lantern
+	}
+
+	private static final ThreadLocal<Queues> QUEUES = ThreadLocal.withInitial(Queues::new);
+
+	private final World world;
+	private final ExecutorService executor;
+	/**
+	 * Blocks queued per chunk since the last flush, as y << 8 | z << 4 | x, or
+	 * null to relight the chunk as a whole
+	 */
+	private Map<Chunk, IntArrayList> pending = new IdentityHashMap<Chunk, IntArrayList>();
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	public LightEngine(final World world) {
+		this.world = world;
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "Light Engine");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Queues a changed block for relighting, if the change affects light
+	 * 
+	 * @param chunk        chunk of the block
+	 * @param x            X coordinate within the chunk
+	 * @param y            Y coordinate
+	 * @param z            Z coordinate within the chunk
+	 * @param previousType type before the change
+	 * @param type         type after the change
+	 * @return whether the change was queued, or the chunk is already queued to
+	 *         be relit as a whole
+	 */
+	public boolean queueUpdate(final Chunk chunk, final int x, final int y, final int z, final int previousType,
+			final int type) {
+		if (OPACITY[previousType] == OPACITY[type] && EMISSION[previousType] == EMISSION[type]) {
+			return false;
+		}
+		synchronized (this) {
+			IntArrayList positions = this.pending.get(chunk);
+			if (positions == null) {
+				if (this.pending.containsKey(chunk)) {
+					return true;
+				}
+				this.pending.put(chunk, positions = new IntArrayList());
+			}
+			if (positions.size() >= MAX_QUEUED_UPDATES) {
+				this.pending.put(chunk, null);
+			} else {
+				positions.add(y << 8 | z << 4 | x);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a chunk to be relit as a whole, for example after a bulk edit
+	 * 
+	 * @param chunk the chunk
+	 */
+	public synchronized void queueRelight(final Chunk chunk) {
+		this.pending.put(chunk, null);
+	}
+
+	/**
+	 * Hands the updates queued since the last call to the light thread, unless
+	 * it is still busy with the previous batch. Called once per tick from the
+	 * tick thread.
+	 */
+	public void flush() {
+		final Map<Chunk, IntArrayList> batch;
+		synchronized (this) {
+			if (this.pending.isEmpty() || !this.running.compareAndSet(false, true)) {
+				return;
+			}
+			batch = this.pending;
+			this.pending = new IdentityHashMap<Chunk, IntArrayList>();
+		}
+
+		this.executor.execute(() -> {
+			try {
+				final List<Chunk> resent = new ArrayList<Chunk>();
+				for (final Map.Entry<Chunk, IntArrayList> entry : batch.entrySet()) {
+					final Chunk chunk = entry.getKey();
+					final IntArrayList positions = entry.getValue();
+					try {
+						synchronized (chunk) {
+							final int mask = positions == null ? this.relight(chunk) : this.update(chunk, positions);
+							if (chunk.lightChanged(mask)) {
+								resent.add(chunk);
+							}
+						}
+					} catch (final Throwable throwable) {
+						// Other chunks of the batch are still lit
+						LOGGER.error("Failed to update light of chunk " + chunk.getX() + "," + chunk.getZ(), throwable);
+					}
+				}
+				if (!resent.isEmpty()) {
+					Polaris.getServer().getTickThread().execute(() -> resent.forEach(this.world::lightChanged));
+				}
+			} finally {
+				this.running.set(false);
+			}
+		});
+	}
+
+	/**
+	 * Stops the light thread, dropping queued updates. Chunks saved afterwards
+	 * get their light through {@link #complete(Chunk)}.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+		try {
+			this.executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Applies the light changes still queued for a chunk on the calling thread,
+	 * so they are not lost when the chunk is saved. The chunk is relit as a
+	 * whole, as changes already handed to the light thread may not be applied.
+	 * 
+	 * @param chunk the chunk
+	 */
+	public void complete(final Chunk chunk) {
+		synchronized (this) {
+			this.pending.remove(chunk);
+		}
+		synchronized (chunk) {
+			if (chunk.isLightPending()) {
+				chunk.lightChanged(this.relight(chunk));
+			}
+		}
+	}
+
+	/**
+	 * Computes all light of a chunk from scratch. Safe to call from any thread,
+	 * the chunk is locked meanwhile.
+	 * 
+	 * @param chunk the chunk
+	 * @return mask of the sections whose light was computed
+	 */
+	public int relight(final Chunk chunk) {
+		// Writers of the chunk hold its lock, so no section changes halfway
+		synchronized (chunk) {
+			return this.relight(chunk.getSections(), QUEUES.get().heights(chunk));
+		}
+	}
+
+	private int relight(final ChunkSection[] sections, final Queues queues) {
+		final int[] tops = queues.tops;
+
+		// Full sky light above the highest block that takes any light away
+		for (int column = 0; column < Chunk.WIDTH * Chunk.HEIGHT; column++) {
+			tops[column] = 0;
+			search: for (int sy = sections.length - 1; sy >= 0; sy--) {
+				final ChunkSection section = sections[sy];
+				if (section == null) {
+					continue;
+				}
+				for (int y = 15; y >= 0; y--) {
+					if (OPACITY[section.getType(y << 8 | column) >> 4] > 0) {
+						tops[column] = (sy << 4) + y + 1;
+						break search;
+					}
+				}
+			}
+		}
+
+		int mask = 0;
+		final IntArrayFIFOQueue queue = queues.increase;
+		for (int sy = 0; sy < sections.length; sy++) {
+			final ChunkSection section = sections[sy];
+			if (section == null) {
+				continue;
+			}
+			mask |= 1 << sy;
+			for (int index = 0; index < SectionStorage.SIZE; index++) {
+				final int y = sy << 4 | index >> 8;
+				section.setSkyLight(index, (byte) (y >= tops[index & 0xFF] ? MAX_LIGHT : 0));
+				final byte emission = EMISSION[section.getType(index) >> 4];
+				section.setBlockLight(index, emission);
+				if (emission > 1) {
+					queue.enqueue(sy << 12 | index);
+				}
+			}
+		}
+		increase(sections, false, queues);
+
+		// Sky light enters where a column is lower than its neighbours, and below the top
+		for (int column = 0; column < Chunk.WIDTH * Chunk.HEIGHT; column++) {
+			final int x = column & 0xF;
+			final int z = column >> 4;
+			int highest = tops[column] + 1;
+			if (x > 0) {
+				highest = Math.max(highest, tops[column - 1]);
+			}
+			if (x < Chunk.WIDTH - 1) {
+				highest = Math.max(highest, tops[column + 1]);
+			}
+			if (z > 0) {
+				highest = Math.max(highest, tops[column - Chunk.WIDTH]);
+			}
+			if (z < Chunk.HEIGHT - 1) {
+				highest = Math.max(highest, tops[column + Chunk.WIDTH]);
+			}
+			for (int y = tops[column]; y < highest && y < Chunk.DEPTH; y++) {
+				queue.enqueue(y << 8 | column);
+			}
+		}
+		increase(sections, true, queues);
+		return mask;
+	}
+
+	/**
+	 * Updates the light around changed blocks, first removing the light that
+	 * came from or through them and then spreading it again from what is left.
+	 * 
+	 * @param chunk     the chunk
+	 * @param positions changed blocks, as y << 8 | z << 4 | x
+	 * @return mask of the sections whose light changed
+	 */
+	int update(final Chunk chunk, final IntArrayList positions) {
+		synchronized (chunk) {
+			return this.update(chunk.getSections(), positions, QUEUES.get().heights(chunk));
+		}
+	}
+
+	private int update(final ChunkSection[] sections, final IntArrayList positions, final Queues queues) {
+		queues.changed = 0;
+		for (final boolean sky : new boolean[] { false, true }) {
+			for (int i = 0; i < positions.size(); i++) {
+				final int position = positions.getInt(i);
+				final int previous = getLight(sections, position, sky, queues);
+				if (previous > 0) {
+					setLight(sections, position, sky, 0, queues);
+					queues.decrease.enqueue(position | previous << 16);
+				}
+				// Neighbours may now shine into the block
+				for (int direction = 0; direction < 6; direction++) {
+					final int neighbour = neighbour(position, direction);
+					if (neighbour >= 0 && getLight(sections, neighbour, sky, queues) > 0) {
+						queues.increase.enqueue(neighbour);
+					}
+				}
+			}
+			decrease(sections, sky, queues);
+
+			for (int i = 0; i < positions.size(); i++) {
+				final int position = positions.getInt(i);
+				final int source;
+				if (sky) {
+					source = position >> 8 == Chunk.DEPTH - 1 && OPACITY[getType(sections, position)] == 0 ? MAX_LIGHT : 0;
+				} else {
+					source = EMISSION[getType(sections, position)];
+				}
+				if (source > getLight(sections, position, sky, queues)) {
+					setLight(sections, position, sky, source, queues);
+					queues.increase.enqueue(position);
+				}
+			}
+			increase(sections, sky, queues);
+		}
+		return queues.changed;
+	}
+
+	/**
+	 * Removes light that depended on the queued positions, handing the light
+	 * that did not to the increase queue
+	 */
+	private static void decrease(final ChunkSection[] sections, final boolean sky, final Queues queues) {
+		final IntArrayFIFOQueue queue = queues.decrease;
+		while (!queue.isEmpty()) {
+			final int entry = queue.dequeueInt();
+			final int position = entry & 0xFFFF;
+			final int level = entry >>> 16;
+			for (int direction = 0; direction < 6; direction++) {
+				final int neighbour = neighbour(position, direction);
+				if (neighbour < 0) {
+					continue;
+				}
+				final int light = getLight(sections, neighbour, sky, queues);
+				if (light == 0) {
+					continue;
+				}
+				if (light < level || sky && direction == DOWN && level == MAX_LIGHT && light == MAX_LIGHT) {
+					setLight(sections, neighbour, sky, 0, queues);
+					queue.enqueue(neighbour | light << 16);
+				} else {
+					queues.increase.enqueue(neighbour);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Spreads light from the queued positions, losing at least one level per
+	 * block except for full sky light going straight down through clear blocks
+	 */
+	private static void increase(final ChunkSection[] sections, final boolean sky, final Queues queues) {
+		final IntArrayFIFOQueue queue = queues.increase;
+		while (!queue.isEmpty()) {
+			final int position = queue.dequeueInt();
+			final int level = getLight(sections, position, sky, queues);
+			if (level <= 1) {
+				continue;
+			}
+			for (int direction = 0; direction < 6; direction++) {
+				final int neighbour = neighbour(position, direction);
+				if (neighbour < 0) {
+					continue;
+				}
+				final int opacity = OPACITY[getType(sections, neighbour)];
+				final int target = sky && direction == DOWN && level == MAX_LIGHT && opacity == 0 ? MAX_LIGHT
+						: level - Math.max(1, opacity);
+				if (target > getLight(sections, neighbour, sky, queues)) {
+					setLight(sections, neighbour, sky, target, queues);
+					queue.enqueue(neighbour);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets a neighbouring position within the chunk: west, east, north, south,
+	 * down and up in that order
+	 * 
+	 * @return the position, or -1 outside of the chunk
+	 */
+	private static int neighbour(final int position, final int direction) {
+		switch (direction) {
+		case 0:
+			return (position & 0xF) == 0 ? -1 : position - 1;
+		case 1:
+			return (position & 0xF) == 0xF ? -1 : position + 1;
+		case 2:
+			return (position & 0xF0) == 0 ? -1 : position - 16;
+		case 3:
+			return (position & 0xF0) == 0xF0 ? -1 : position + 16;
+		case DOWN:
+			return position < 256 ? -1 : position - 256;
+		default:
+			return position >= (Chunk.DEPTH - 1) << 8 ? -1 : position + 256;
+		}
+	}
+
+	private static int getType(final ChunkSection[] sections, final int position) {
+		final ChunkSection section = sections[position >> 12];
+		return section == null ? 0 : section.getType(position & 0xFFF) >> 4;
+	}
+
+	private static int getLight(final ChunkSection[] sections, final int position, final boolean sky,
+			final Queues queues) {
+		final ChunkSection section = sections[position >> 12];
+		if (section == null) {
+			// Emptied sections below the surface stay dark
+			return sky && position >> 8 >= queues.heights[position & 0xFF] ? MAX_LIGHT : 0;
+		}
+		return sky ? section.getSkyLight(position & 0xFFF) : section.getBlockLight(position & 0xFFF);
+	}
+
+	private static void setLight(final ChunkSection[] sections, final int position, final boolean sky,
+			final int level, final Queues queues) {
+		final ChunkSection section = sections[position >> 12];
+		if (section == null) {
+			return;
+		}
+		if (sky) {
+			section.setSkyLight(position & 0xFFF, (byte) level);
+		} else {
+			section.setBlockLight(position & 0xFFF, (byte) level);
+		}
+		queues.changed |= 1 << (position >> 12);
+	}
+
+	/**
+	 * Work queues reused by every update on a thread
+	 */
+	private static final class Queues {
+		private final IntArrayFIFOQueue increase = new IntArrayFIFOQueue();
+		private final IntArrayFIFOQueue decrease = new IntArrayFIFOQueue();
+		private final int[] tops = new int[Chunk.WIDTH * Chunk.HEIGHT];
+		/**
+		 * Height map of the chunk being lit, as z << 4 | x
+		 */
+		private final int[] heights = new int[Chunk.WIDTH * Chunk.HEIGHT];
+		private int changed;
+
+		private Queues heights(final Chunk chunk) {
+			for (int column = 0; column < this.heights.length; column++) {
+				this.heights[column] = chunk.getHeight(column & 0xF, column >> 4);
+			}
+			return this;
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import java.util.Arrays;
+
+import com.rammelkast.polaris.util.SimplexNoise;
+
+/**
+ * Generates rolling hills from simplex noise, with stone under a few blocks of
+ * dirt and grass, and water and sand below sea level. Sections are built a
+ * whole column at a time in per-thread scratch arrays, so generating a chunk
+ * allocates nothing besides the chunk itself.
+ */
+public final class NoiseChunkGenerator implements ChunkGenerator {
+
+	private static final int SEA_LEVEL = 62;
+	private static final int BASE_HEIGHT = 64;
+	private static final int AMPLITUDE = 24;
+	private static final double SCALE = 1D / 192D;
+	private static final int OCTAVES = 4;
+	private static final byte PLAINS = 1;
+
+	private static final char BEDROCK = 7 << 4, STONE = 1 << 4, DIRT = 3 << 4, GRASS = 2 << 4, SAND = 12 << 4,
+			WATER = 9 << 4;
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	private final SimplexNoise noise;
+
+	public NoiseChunkGenerator(final long seed) {
+		this.noise = new SimplexNoise(seed);
+	}
+
+	@Override
+	public void generate(final Chunk chunk) {
+		final Scratch scratch = SCRATCH.get();
+		final int[] terrain = scratch.terrain;
+		final int[] heightMap = scratch.heightMap;
+		final int baseX = chunk.getX() << 4;
+		final int baseZ = chunk.getZ() << 4;
+		int top = 0;
+		for (int z = 0; z < Chunk.HEIGHT; z++) {
+			for (int x = 0; x < Chunk.WIDTH; x++) {
+				final double value = this.noise.fractal((baseX + x) * SCALE, (baseZ + z) * SCALE, OCTAVES);
+				final int height = Math.max(1, Math.min(Chunk.DEPTH - 1, BASE_HEIGHT + (int) Math.round(value * AMPLITUDE)));
+				terrain[z * Chunk.WIDTH + x] = height;
+				heightMap[z * Chunk.WIDTH + x] = Math.max(height, SEA_LEVEL + 1);
+				top = Math.max(top, heightMap[z * Chunk.WIDTH + x]);
+			}
+		}
+
+		final char[] types = scratch.types;
+		for (int sy = 0; sy <= (top - 1) >> 4; sy++) {
+			final int bottom = sy << 4;
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				for (int x = 0; x < Chunk.WIDTH; x++) {
+					final int height = terrain[z * Chunk.WIDTH + x];
+					final boolean beach = height <= SEA_LEVEL + 1;
+					for (int y = 0; y < 16; y++) {
+						types[y << 8 | z << 4 | x] = getType(bottom + y, height, beach);
+					}
+				}
+			}
+			chunk.setSectionTypes(sy, types);
+		}
+		chunk.setHeightMap(heightMap);
+		chunk.setBiomes(scratch.biomes);
+	}
+
+	private static char getType(final int y, final int height, final boolean beach) {
+		if (y == 0) {
+			return BEDROCK;
+		}
+		if (y < height - 4) {
+			return STONE;
+		}
+		if (y < height - 1) {
+			return beach ? SAND : DIRT;
+		}
+		if (y == height - 1) {
+			return beach ? SAND : GRASS;
+		}
+		return y <= SEA_LEVEL ? WATER : 0;
+	}
+
+	/**
+	 * Arrays reused by every chunk generated on a thread
+	 */
+	private static final class Scratch {
+		private final char[] types = new char[SectionStorage.SIZE];
+		private final int[] terrain = new int[Chunk.WIDTH * Chunk.HEIGHT];
+		private final int[] heightMap = new int[Chunk.WIDTH * Chunk.HEIGHT];
+		private final byte[] biomes = new byte[Chunk.WIDTH * Chunk.HEIGHT];
+
+		private Scratch() {
+			Arrays.fill(this.biomes, PLAINS);
+		}
+	}
+
+}
@@ -0,0 +1,355 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.chars.Char2IntOpenHashMap;
+
+/**
+ * Stores the block states (type << 4 | metadata) of a chunk section, picking
+ * the smallest representation for the amount of distinct states: a single
+ * value, indices of 1, 2, 4 or 8 bits into a palette packed into longs, or a
+ * plain char array once there are more than 256 states. Entry sizes are powers
+ * of two so an entry never spans two longs, keeping get and set O(1). The
+ * representation only grows, it is never shrunk on set. Filling all of the
+ * storage resets it to a single value.
+ */
+public final class PalettedStorage {
+
+	public static final int SIZE = 4096;
+	private static final int MAX_PALETTE_BITS = 8;
+
+	/**
+	 * Bits per palette index, 0 for a single value
+	 */
+	private int bits;
+	private int indexMask;
+	/**
+	 * Log2 of the amount of entries per long
+	 */
+	private int entriesShift;
+	private char[] palette;
+	private int paletteSize;
+	private Char2IntOpenHashMap inverse;
+	private long[] data;
+	/**
+	 * The states themselves, only set once the palette is too large
+	 */
+	private char[] direct;
+
+	/**
+	 * Creates a storage filled with a single state
+	 * 
+	 * @param value the state of every block
+	 */
+	public PalettedStorage(final char value) {
+		this.palette = new char[] { value };
+		this.paletteSize = 1;
+	}
+
+	/**
+	 * Creates the most compact storage for the given states
+	 * 
+	 * @param values the states, of length {@link #SIZE}
+	 */
+	public PalettedStorage(final char[] values) {
+		if (values.length != SIZE) {
+			throw new IllegalArgumentException("Expected " + SIZE + " values, got " + values.length);
+		}
+		this.palette = new char[] { values[0] };
+		this.paletteSize = 1;
+		for (int i = 0; i < SIZE; i++) {
+			this.set(i, values[i]);
+		}
+	}
+
+	private PalettedStorage(final PalettedStorage other) {
+		this.bits = other.bits;
+		this.indexMask = other.indexMask;
+		this.entriesShift = other.entriesShift;
+		this.palette = other.palette == null ? null : other.palette.clone();
+		this.paletteSize = other.paletteSize;
+		if (other.inverse != null) {
+			this.inverse = new Char2IntOpenHashMap(other.inverse);
+			this.inverse.defaultReturnValue(-1);
+		}
+		this.data = other.data == null ? null : other.data.clone();
+		this.direct = other.direct == null ? null : other.direct.clone();
+	}
+
+	/**
+	 * Gets the state at the given index
+	 * 
+	 * @param index block index within the section
+	 * @return the state
+	 */
+	public char get(final int index) {
+		if (this.direct != null) {
+			return this.direct[index];
+		}
+		if (this.bits == 0) {
+			return this.palette[0];
+		}
+		return this.palette[this.getIndex(index)];
+	}
+
+	/**
+	 * Sets the state at the given index, growing the storage if the state is not
+	 * in the palette yet
+	 * 
+	 * @param index block index within the section
+	 * @param value the state
+	 */
+	public void set(final int index, final char value) {
+		if (this.direct != null) {
+			this.direct[index] = value;
+			return;
+		}
+
+		int paletteIndex = this.indexOf(value);
+		if (paletteIndex < 0) {
+			if (this.paletteSize == 1 << this.bits) {
+				this.resize(this.bits == 0 ? 1 : this.bits << 1);
+				if (this.direct != null) {
+					this.direct[index] = value;
+					return;
+				}
+			}
+			paletteIndex = this.paletteSize++;
+			this.palette[paletteIndex] = value;
+			this.inverse.put(value, paletteIndex);
+		}
+
+		if (this.bits != 0) {
+			this.setIndex(index, paletteIndex);
+		}
+	}
+
+	/**
+	 * Sets a range of indices to the same state, whole longs at a time
+	 * 
+	 * @param from  first index
+	 * @param to    index after the last
+	 * @param value the state
+	 */
+	public void fill(final int from, final int to, final char value) {
+		if (from == 0 && to == SIZE) {
+			this.bits = 0;
+			this.indexMask = 0;
+			this.entriesShift = 0;
+			this.palette = new char[] { value };
+			this.paletteSize = 1;
+			this.inverse = null;
+			this.data = null;
+			this.direct = null;
+			return;
+		}
+		if (from >= to) {
+			return;
+		}
+
+		// Adds the state to the palette, growing the storage if needed
+		this.set(from, value);
+		if (this.direct != null) {
+			Arrays.fill(this.direct, from, to, value);
+			return;
+		}
+		if (this.bits == 0) {
+			return;
+		}
+
+		final int paletteIndex = this.indexOf(value);
+		final int perWord = 1 << this.entriesShift;
+		int index = from + 1;
+		for (; index < to && (index & (perWord - 1)) != 0; index++) {
+			this.setIndex(index, paletteIndex);
+		}
+		final int wholeWords = (to - index) >> this.entriesShift;
+		if (wholeWords > 0) {
+			long pattern = 0;
+			for (int i = 0; i < perWord; i++) {
+				pattern |= (long) paletteIndex << (i * this.bits);
+			}
+			final int word = index >> this.entriesShift;
+			Arrays.fill(this.data, word, word + wholeWords, pattern);
+			index += wholeWords << this.entriesShift;
+		}
+		for (; index < to; index++) {
+			this.setIndex(index, paletteIndex);
+		}
+	}
+
+	/**
+	 * Copies a range of states into an array
+	 * 
+	 * @param from   first index
+	 * @param dest   array to copy to
+	 * @param offset position in the array
+	 * @param length amount of states
+	 */
+	public void get(final int from, final char[] dest, final int offset, final int length) {
+		if (this.direct != null) {
+			System.arraycopy(this.direct, from, dest, offset, length);
+		} else if (this.bits == 0) {
+			Arrays.fill(dest, offset, offset + length, this.palette[0]);
+		} else {
+			for (int i = 0; i < length; i++) {
+				dest[offset + i] = this.palette[this.getIndex(from + i)];
+			}
+		}
+	}
+
+	/**
+	 * Sets a range of states from an array
+	 * 
+	 * @param from   first index
+	 * @param src    array to copy from
+	 * @param offset position in the array
+	 * @param length amount of states
+	 */
+	public void set(final int from, final char[] src, final int offset, final int length) {
+		if (this.direct != null) {
+			System.arraycopy(src, offset, this.direct, from, length);
+			return;
+		}
+		for (int i = 0; i < length; i++) {
+			this.set(from + i, src[offset + i]);
+		}
+	}
+
+	/**
+	 * Writes all states as little endian chars, in index order
+	 * 
+	 * @param dest   array to write to
+	 * @param offset position of the first byte
+	 * @return position after the last byte
+	 */
+	public int writeLittleEndian(final byte[] dest, int offset) {
+		if (this.direct == null && this.bits == 0) {
+			final byte low = (byte) this.palette[0];
+			final byte high = (byte) (this.palette[0] >> 8);
+			for (int i = 0; i < SIZE; i++) {
+				dest[offset++] = low;
+				dest[offset++] = high;
+			}
+			return offset;
+		}
+		for (int i = 0; i < SIZE; i++) {
+			final char value = this.get(i);
+			dest[offset++] = (byte) value;
+			dest[offset++] = (byte) (value >> 8);
+		}
+		return offset;
+	}
+
+	/**
+	 * Gets the amount of bits used per block, 0 for a single value and 16 once
+	 * the states are stored directly
+	 * 
+	 * @return bits per block
+	 */
+	public int getBitsPerBlock() {
+		return this.direct != null ? 16 : this.bits;
+	}
+
+	/**
+	 * Estimates the heap memory used by this storage in bytes
+	 * 
+	 * @return the estimated size
+	 */
+	public long getMemoryUsage() {
+		long size = 48;
+		if (this.direct != null) {
+			return size + 16 + 2L * this.direct.length;
+		}
+		size += 16 + 2L * this.palette.length;
+		if (this.data != null) {
+			size += 16 + 8L * this.data.length;
+		}
+		if (this.inverse != null) {
+			// Key and value arrays of the open hash map, at its default load factor
+			size += 64 + 12L * this.palette.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Creates a copy which will not reflect future changes
+	 * 
+	 * @return the copy
+	 */
+	public PalettedStorage copy() {
+		return new PalettedStorage(this);
+	}
+
+	private int indexOf(final char value) {
+		if (this.bits == 0) {
+			return this.palette[0] == value ? 0 : -1;
+		}
+		return this.inverse.get(value);
+	}
+
+	private void setIndex(final int index, final int paletteIndex) {
+		final int word = index >> this.entriesShift;
+		final int shift = (index & ((1 << this.entriesShift) - 1)) * this.bits;
+		this.data[word] = (this.data[word] & ~((long) this.indexMask << shift)) | ((long) paletteIndex << shift);
+	}
+
+	private int getIndex(final int index) {
+		final long word = this.data[index >> this.entriesShift];
+		final int shift = (index & ((1 << this.entriesShift) - 1)) * this.bits;
+		return (int) (word >>> shift) & this.indexMask;
+	}
+
+	private void resize(final int newBits) {
+		if (newBits > MAX_PALETTE_BITS) {
+			final char[] direct = new char[SIZE];
+			for (int i = 0; i < SIZE; i++) {
+				direct[i] = this.get(i);
+			}
+			this.direct = direct;
+			this.palette = null;
+			this.inverse = null;
+			this.data = null;
+			return;
+		}
+
+		final int newShift = Integer.numberOfTrailingZeros(64 / newBits);
+		final long[] newData = new long[SIZE * newBits / 64];
+		if (this.bits != 0) {
+			for (int i = 0; i < SIZE; i++) {
+				final int shift = (i & ((1 << newShift) - 1)) * newBits;
+				newData[i >> newShift] |= (long) this.getIndex(i) << shift;
+			}
+		}
+		if (this.inverse == null) {
+			this.inverse = new Char2IntOpenHashMap();
+			this.inverse.defaultReturnValue(-1);
+			for (int i = 0; i < this.paletteSize; i++) {
+				this.inverse.put(this.palette[i], i);
+			}
+		}
+
+		this.palette = Arrays.copyOf(this.palette, 1 << newBits);
+		this.data = newData;
+		this.bits = newBits;
+		this.indexMask = (1 << newBits) - 1;
+		this.entriesShift = newShift;
+	}
+
+}
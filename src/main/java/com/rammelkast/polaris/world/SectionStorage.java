@@ -0,0 +1,160 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Backing store of the block types and light levels of a single chunk
+ * section. Indices are as returned by {@link Chunk.ChunkSection#index(int, int, int)}.
+ */
+public interface SectionStorage {
+
+	/**
+	 * Amount of blocks in a section
+	 */
+	int SIZE = 4096;
+
+	char getType(final int index);
+
+	void setType(final int index, final char type);
+
+	byte getSkyLight(final int index);
+
+	void setSkyLight(final int index, final byte value);
+
+	byte getBlockLight(final int index);
+
+	void setBlockLight(final int index, final byte value);
+
+	/**
+	 * Sets a range of types to the same value
+	 * 
+	 * @param from first index
+	 * @param to   index after the last
+	 * @param type the type
+	 */
+	void fillTypes(final int from, final int to, final char type);
+
+	/**
+	 * Copies a range of types into an array
+	 * 
+	 * @param from   first index
+	 * @param dest   array to copy to
+	 * @param offset position in the array
+	 * @param length amount of types
+	 */
+	void getTypes(final int from, final char[] dest, final int offset, final int length);
+
+	/**
+	 * Sets a range of types from an array
+	 * 
+	 * @param from   first index
+	 * @param src    array to copy from
+	 * @param offset position in the array
+	 * @param length amount of types
+	 */
+	void setTypes(final int from, final char[] src, final int offset, final int length);
+
+	/**
+	 * Writes all types as little endian chars, in index order
+	 * 
+	 * @param out buffer to write to
+	 */
+	void writeTypes(final ByteBuf out);
+
+	/**
+	 * Writes the sky light levels as nibbles, in index order
+	 * 
+	 * @param out buffer to write to
+	 */
+	void writeSkyLight(final ByteBuf out);
+
+	/**
+	 * Writes the block light levels as nibbles, in index order
+	 * 
+	 * @param out buffer to write to
+	 */
+	void writeBlockLight(final ByteBuf out);
+
+	/**
+	 * Estimates the memory used by this storage in bytes, on or off heap
+	 * 
+	 * @return the estimated size
+	 */
+	long getMemoryUsage();
+
+	/**
+	 * Creates a copy which will not reflect future changes
+	 * 
+	 * @return the copy
+	 */
+	SectionStorage copy();
+
+	/**
+	 * The kinds of section storage, selected per world
+	 */
+	enum Type {
+		/**
+		 * Palette compressed types and nibble arrays on the Java heap
+		 */
+		HEAP {
+			@Override
+			public SectionStorage create() {
+				return new HeapSectionStorage();
+			}
+
+			@Override
+			public SectionStorage create(final char[] types, final byte[] skyLight, final byte[] blockLight) {
+				return new HeapSectionStorage(types, skyLight, blockLight);
+			}
+		},
+		/**
+		 * A direct buffer per section, laid out as sent to the client, so section
+		 * data does not add to the heap that the GC has to scan
+		 */
+		DIRECT {
+			@Override
+			public SectionStorage create() {
+				return new DirectSectionStorage();
+			}
+
+			@Override
+			public SectionStorage create(final char[] types, final byte[] skyLight, final byte[] blockLight) {
+				return new DirectSectionStorage(types, skyLight, blockLight);
+			}
+		};
+
+		/**
+		 * Creates an empty section, of air with full sky light
+		 * 
+		 * @return the storage
+		 */
+		public abstract SectionStorage create();
+
+		/**
+		 * Creates a section with the given data. The arrays are not kept.
+		 * 
+		 * @param types      block types, of length {@link SectionStorage#SIZE}
+		 * @param skyLight   sky light nibbles, of length {@link SectionStorage#SIZE} / 2
+		 * @param blockLight block light nibbles, of length {@link SectionStorage#SIZE} / 2
+		 * @return the storage
+		 */
+		public abstract SectionStorage create(final char[] types, final byte[] skyLight, final byte[] blockLight);
+	}
+
+}
@@ -16,81 +16,791 @@
  */
 package com.rammelkast.polaris.world;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rammelkast.polaris.Polaris;
+import com.rammelkast.polaris.TickThread;
+import com.rammelkast.polaris.entity.Entity;
 import com.rammelkast.polaris.entity.human.Player;
 import com.rammelkast.polaris.net.packet.Packet;
+import com.rammelkast.polaris.net.packet.PreparedPacket;
 import com.rammelkast.polaris.net.packet.play.out.PacketOutChatMessage;
+import com.rammelkast.polaris.profile.Profiler;
 import com.rammelkast.polaris.util.Location;
+import com.rammelkast.polaris.world.Chunk.ChunkSection;
+import com.rammelkast.polaris.world.storage.AnvilChunkLoader;
 
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.ChatMessageType;
 import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.chat.ComponentSerializer;
 
 public final class World {
 
+	private static final Logger LOGGER = LogManager.getLogger(World.class);
+	// Upper bound on the amount of chunk I/O threads
+	private static final int IO_THREADS = 4;
+	// Ticks between chunk eviction passes
+	private static final int EVICTION_INTERVAL = 20;
+	// Fills touching at least this many chunks are spread over the common pool
+	private static final int PARALLEL_FILL_CHUNKS = 4;
+	// Ticks before a chunk that failed to load is tried again
+	private static final int LOAD_RETRY_TICKS = 100;
+
 	@Getter
 	private final String name;
-	@Getter
-	private final Chunk[][] chunks;
+	/**
+	 * All loaded chunks by key. Only written from the tick thread, the lock is
+	 * for the blocking lookups of other threads.
+	 */
+	private final Long2ObjectMap<Chunk> chunks = Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<Chunk>());
 	@Getter
 	private final Set<Player> players = new HashSet<Player>();
+	/**
+	 * Spatial index of all entities, by the key of the chunk they are in
+	 */
+	private final Long2ObjectMap<Set<Entity>> chunkEntities = new Long2ObjectOpenHashMap<Set<Entity>>();
 	
+	private final AnvilChunkLoader chunkLoader;
+	private final ThreadPoolExecutor ioExecutor;
+	/**
+	 * Loads in progress, and failed loads until they may be retried. Only
+	 * accessed from the tick thread.
+	 */
+	private final Long2ObjectMap<CompletableFuture<Chunk>> pendingLoads = new Long2ObjectOpenHashMap<CompletableFuture<Chunk>>();
+	/**
+	 * Tick from which each failed load may be retried. Only accessed from the
+	 * tick thread.
+	 */
+	private final Long2IntMap loadRetryTicks = new Long2IntOpenHashMap();
+	/**
+	 * Chunks that were unloaded but are still being saved, only accessed from
+	 * the tick thread. A request for one of these reuses it instead of reading
+	 * stale data from disk.
+	 */
+	private final Long2ObjectMap<Chunk> pendingSaves = new Long2ObjectOpenHashMap<Chunk>();
+	/**
+	 * Amount of viewers of each chunk, by key. Only accessed from the tick thread.
+	 */
+	private final Long2IntMap chunkViewers = new Long2IntOpenHashMap();
+	/**
+	 * Players that have been sent each chunk, by key. Only accessed from the
+	 * tick thread.
+	 */
+	private final Long2ObjectMap<Set<Player>> chunkPlayers = new Long2ObjectOpenHashMap<Set<Player>>();
+	/**
+	 * Loaded chunks without viewers and the tick they lost their last viewer, in
+	 * least recently viewed order. Only accessed from the tick thread.
+	 */
+	private final Long2LongLinkedOpenHashMap idleChunks = new Long2LongLinkedOpenHashMap();
+	/**
+	 * Chunks with block changes not yet sent to their viewers. Only accessed
+	 * from the tick thread.
+	 */
+	private final LongSet changedChunks = new LongOpenHashSet();
+	private final ChunkGenerator generator;
+	/**
+	 * Where the block and light data of this world's chunks is kept
+	 */
+	@Getter
+	private final SectionStorage.Type sectionStorage;
+	@Getter
+	private final LightEngine lightEngine;
 	private Location spawnPoint;
+	private int ticks;
 
-	public World(final String name, final int size) {
+	public World(final String name, final ChunkGenerator generator, final SectionStorage.Type sectionStorage) {
 		this.name = name;
-		this.chunks = new Chunk[size][size];
+		this.generator = generator;
+		this.sectionStorage = sectionStorage;
+		this.lightEngine = new LightEngine(this);
+		this.chunkLoader = new AnvilChunkLoader(new File(name));
+		final int ioThreads = Math.max(1, Math.min(IO_THREADS, Runtime.getRuntime().availableProcessors() / 2));
+		this.ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "Chunk I/O #" + this.counter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 		
 		// TODO config
 		this.spawnPoint = new Location(this, 125, 6, 125);
 
-		// Generate world
-		for (int x = 0; x < size; x++) {
-			for (int z = 0; z < size; z++) {
-				Chunk chunk = new Chunk(this, x, z);
-				chunk.initializeSections();
-
-				// set chunk content
-
-				chunk.setBlock(0, 5, 0, 35, x & 0xF); // wool pillars for chunk marking
-				chunk.setBlock(0, 6, 0, 35, x & 0xF); // wool pillars for chunk marking
-				chunk.setBlock(0, 7, 0, 35, x & 0xF); // wool pillars for chunk marking
-				chunk.setBlock(0, 8, 0, 35, x & 0xF); // wool pillars for chunk marking
-
-				for (int x1 = 0; x1 < 16; x1++) {
-					for (int z1 = 0; z1 < 16; z1++) {
-						chunk.setBlock(x1, 1, z1, 7, 0);
-						chunk.setBlock(x1, 2, z1, 1, 0);
-						chunk.setBlock(x1, 3, z1, 3, 0);
-						chunk.setBlock(x1, 4, z1, 2, 0);
-					}
+		// Prepare the spawn area on all cores, everything else is loaded when a player needs it
+		final long startTime = System.nanoTime();
+		final int spawnX = this.spawnPoint.getBlockX() >> 4;
+		final int spawnZ = this.spawnPoint.getBlockZ() >> 4;
+		final int radius = Math.max(Polaris.PREGENERATION_RADIUS, Polaris.VIEW_DISTANCE);
+		final Chunk[] prepared = new Chunk[(radius * 2 + 1) * (radius * 2 + 1)];
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		pool.invoke(new PregenerateTask(spawnX - radius, spawnZ - radius, radius * 2 + 1, prepared, 0,
+				prepared.length));
+		
+		// Joining the task publishes the chunks to this thread
+		for (final Chunk chunk : prepared) {
+			final long key = chunk.getKey();
+			if (Math.abs(chunk.getX() - spawnX) <= Polaris.VIEW_DISTANCE
+					&& Math.abs(chunk.getZ() - spawnZ) <= Polaris.VIEW_DISTANCE) {
+				// Spawn chunks are never evicted
+				chunk.clearChanges();
+				chunk.setLightEngine(this.lightEngine);
+				this.chunks.put(key, chunk);
+				this.chunkViewers.put(key, 1);
+			} else {
+				// The rest is saved and dropped again once the grace period is over
+				this.addChunk(key, chunk);
+			}
+		}
+		
+		// Spawn on top of the terrain
+		final Chunk spawnChunk = this.chunks.get(Chunk.getChunkKey(spawnX, spawnZ));
+		this.spawnPoint.setY(spawnChunk.getHeight(this.spawnPoint.getBlockX() & 0xF, this.spawnPoint.getBlockZ() & 0xF));
+		
+		final double seconds = (System.nanoTime() - startTime) / 1000000000D;
+		LOGGER.info("Prepared " + prepared.length + " spawn chunks in " + Math.round(seconds * 1000D) + " ms ("
+				+ Math.round(prepared.length / seconds) + " chunks/s on " + (pool.getParallelism() + 1)
+				+ " threads)");
+	}
+	
+	/**
+	 * Loads a chunk from disk, or generates it if it was never saved. Blocks, so
+	 * this is only called from the I/O threads and while preparing the spawn,
+	 * possibly from many threads at once.
+	 */
+	private Chunk loadChunk(final int x, final int z) {
+		try {
+			final Chunk chunk = this.chunkLoader.loadChunk(this, x, z);
+			if (chunk != null) {
+				return chunk;
+			}
+		} catch (final IOException exception) {
+			LOGGER.error("Failed to load chunk " + x + "," + z + ", regenerating it", exception);
+		}
+		
+		final Chunk chunk = new Chunk(this, x, z);
+		chunk.initializeSections();
+		this.generator.generate(chunk);
+		this.lightEngine.relight(chunk);
+		return chunk;
+	}
+	
+	/**
+	 * Gets the chunk at the given chunk coordinates, loading it on the I/O
+	 * threads if needed. Concurrent requests for the same chunk share a single
+	 * load, and loads closer to a player run first. The future is completed on
+	 * the tick thread, after the chunk has been added to the world. A failed load
+	 * keeps its failed future for {@link #LOAD_RETRY_TICKS} before the next
+	 * request tries again. Must be called from the tick thread.
+	 * 
+	 * @param chunkX chunk X coordinate
+	 * @param chunkZ chunk Z coordinate
+	 * @return future of the chunk
+	 */
+	public CompletableFuture<Chunk> getChunkAsync(final int chunkX, final int chunkZ) {
+		final long key = Chunk.getChunkKey(chunkX, chunkZ);
+		final Chunk loaded = this.chunks.get(key);
+		if (loaded != null) {
+			return CompletableFuture.completedFuture(loaded);
+		}
+		
+		final Chunk saving = this.pendingSaves.remove(key);
+		if (saving != null) {
+			this.addChunk(key, saving);
+			return CompletableFuture.completedFuture(saving);
+		}
+		
+		final CompletableFuture<Chunk> pending = this.pendingLoads.get(key);
+		if (pending != null) {
+			if (!pending.isCompletedExceptionally() || this.ticks < this.loadRetryTicks.get(key)) {
+				return pending;
+			}
+			this.pendingLoads.remove(key);
+			this.loadRetryTicks.remove(key);
+		}
+		
+		final CompletableFuture<Chunk> newFuture = new CompletableFuture<Chunk>();
+		this.pendingLoads.put(key, newFuture);
+		this.ioExecutor.execute(new ChunkLoadTask(this.getNearestPlayerDistance(chunkX, chunkZ), () -> {
+			final TickThread tickThread = Polaris.getServer().getTickThread();
+			try {
+				final Chunk chunk = this.loadChunk(chunkX, chunkZ);
+				tickThread.execute(() -> {
+					this.addChunk(key, chunk);
+					this.pendingLoads.remove(key);
+					newFuture.complete(chunk);
+				});
+			} catch (final Throwable throwable) {
+				LOGGER.error("Failed to prepare chunk " + chunkX + "," + chunkZ, throwable);
+				tickThread.execute(() -> {
+					this.loadRetryTicks.put(key, this.ticks + LOAD_RETRY_TICKS);
+					newFuture.completeExceptionally(throwable);
+				});
+			}
+		}));
+		return newFuture;
+	}
+	
+	/**
+	 * Gets the squared distance in chunks from the given chunk to the nearest
+	 * player, used to order chunk loads
+	 */
+	private int getNearestPlayerDistance(final int chunkX, final int chunkZ) {
+		int nearest = Integer.MAX_VALUE;
+		for (final Player player : this.players) {
+			final int deltaX = (player.getLocation().getBlockX() >> 4) - chunkX;
+			final int deltaZ = (player.getLocation().getBlockZ() >> 4) - chunkZ;
+			nearest = Math.min(nearest, deltaX * deltaX + deltaZ * deltaZ);
+		}
+		return nearest;
+	}
+	
+	/**
+	 * Saves all chunks to their region files
+	 */
+	public void save() {
+		this.lightEngine.shutdown();
+		// Lets queued saves of unloaded chunks finish before the final save
+		this.ioExecutor.shutdown();
+		try {
+			this.ioExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+		
+		final long startTime = System.nanoTime();
+		int saved = 0;
+		synchronized (this.chunks) {
+			for (final Chunk chunk : this.chunks.values()) {
+				if (!chunk.isDirty() && !chunk.isLightPending()) {
+					continue;
+				}
+				try {
+					// The light thread is stopped, its queued updates are applied here
+					this.lightEngine.complete(chunk);
+					chunk.setDirty(false);
+					this.chunkLoader.saveChunk(chunk);
+					saved++;
+				} catch (final IOException exception) {
+					LOGGER.error("Failed to save chunk " + chunk.getX() + "," + chunk.getZ(), exception);
 				}
-
-				this.chunks[x][z] = chunk;
 			}
 		}
+		
+		try {
+			this.chunkLoader.close();
+		} catch (final IOException exception) {
+			LOGGER.error("Failed to close region files", exception);
+		}
+		LOGGER.info("Saved " + saved + " chunks in " + (System.nanoTime() - startTime) / 1000000L + " ms");
 	}
 
+	/**
+	 * Called once per tick from the tick thread
+	 */
+	public void tick() {
+		this.players.forEach(Player::tick);
+		this.flushBlockChanges();
+		this.lightEngine.flush();
+		if (++this.ticks % EVICTION_INTERVAL == 0) {
+			this.evictChunks();
+		}
+	}
+	
+	/**
+	 * Adds a loaded chunk to the world. Chunks nobody is viewing start out idle,
+	 * so they are evicted again if no player shows up in time.
+	 */
+	private void addChunk(final long key, final Chunk chunk) {
+		// Blocks set while generating are part of the chunk itself
+		chunk.clearChanges();
+		chunk.setLightEngine(this.lightEngine);
+		this.chunks.put(key, chunk);
+		if (!this.chunkViewers.containsKey(key)) {
+			this.idleChunks.putAndMoveToLast(key, this.ticks);
+		}
+	}
+	
+	/**
+	 * Registers a viewer of a chunk, which keeps it from being evicted. The
+	 * chunk does not need to be loaded. Must be called from the tick thread.
+	 * 
+	 * @param chunkX chunk X coordinate
+	 * @param chunkZ chunk Z coordinate
+	 */
+	public void addChunkViewer(final int chunkX, final int chunkZ) {
+		final long key = Chunk.getChunkKey(chunkX, chunkZ);
+		if (this.chunkViewers.addTo(key, 1) == 0) {
+			this.idleChunks.remove(key);
+		}
+	}
+	
+	/**
+	 * Unregisters a viewer of a chunk. Once a chunk has no viewers left it is
+	 * evicted after a grace period, or sooner if the chunk memory budget is
+	 * exceeded. Must be called from the tick thread.
+	 * 
+	 * @param chunkX chunk X coordinate
+	 * @param chunkZ chunk Z coordinate
+	 */
+	public void removeChunkViewer(final int chunkX, final int chunkZ) {
+		final long key = Chunk.getChunkKey(chunkX, chunkZ);
+		if (this.chunkViewers.addTo(key, -1) <= 1) {
+			this.chunkViewers.remove(key);
+			if (this.chunks.containsKey(key)) {
+				this.idleChunks.putAndMoveToLast(key, this.ticks);
+			}
+		}
+	}
+	
+	/**
+	 * Registers a player that has been sent a chunk, so block changes in it are
+	 * sent to them. Must be called from the tick thread.
+	 * 
+	 * @param key    chunk key
+	 * @param player the player
+	 */
+	public void addChunkPlayer(final long key, final Player player) {
+		this.chunkPlayers.computeIfAbsent(key, k -> new HashSet<Player>()).add(player);
+	}
+	
+	/**
+	 * Unregisters a player that unloaded a chunk. Must be called from the tick
+	 * thread.
+	 * 
+	 * @param key    chunk key
+	 * @param player the player
+	 */
+	public void removeChunkPlayer(final long key, final Player player) {
+		final Set<Player> players = this.chunkPlayers.get(key);
+		if (players != null && players.remove(player) && players.isEmpty()) {
+			this.chunkPlayers.remove(key);
+		}
+	}
+	
+	/**
+	 * Evicts idle chunks, least recently viewed first. Chunks are evicted once
+	 * their grace period is over, or right away while the resident chunks exceed
+	 * the memory budget. Dirty chunks are saved on the I/O threads.
+	 */
+	private void evictChunks() {
+		long residentMemory = 0;
+		synchronized (this.chunks) {
+			for (final Chunk chunk : this.chunks.values()) {
+				residentMemory += chunk.getMemoryUsage();
+			}
+		}
+		
+		final long budget = Polaris.CHUNK_MEMORY_BUDGET * 1024L * 1024L;
+		int evicted = 0;
+		while (!this.idleChunks.isEmpty()) {
+			final long key = this.idleChunks.firstLongKey();
+			final boolean expired = this.ticks - this.idleChunks.get(key) >= Polaris.CHUNK_GRACE_TICKS;
+			if (!expired && residentMemory <= budget) {
+				break;
+			}
+			
+			this.idleChunks.remove(key);
+			final Chunk chunk = this.chunks.remove(key);
+			if (chunk == null) {
+				continue;
+			}
+			residentMemory -= chunk.getMemoryUsage();
+			chunk.releaseCache();
+			chunk.setLightEngine(null);
+			evicted++;
+			if (chunk.isDirty() || chunk.isLightPending()) {
+				this.saveChunkAsync(key, chunk);
+			}
+		}
+		
+		// Failed loads nobody is waiting for anymore are forgotten
+		for (final LongIterator iterator = this.loadRetryTicks.keySet().iterator(); iterator.hasNext();) {
+			final long key = iterator.nextLong();
+			if (!this.chunkViewers.containsKey(key)) {
+				iterator.remove();
+				this.pendingLoads.remove(key);
+			}
+		}
+		
+		final Profiler profiler = Polaris.getServer().getProfiler();
+		profiler.recordEvictions(evicted);
+		profiler.setResidentChunks(this.chunks.size());
+	}
+	
+	/**
+	 * Saves an evicted chunk on the I/O threads, keeping it around until the save
+	 * is done. The chunk may be put back into the world and changed meanwhile,
+	 * the save serializes it under its lock.
+	 */
+	private void saveChunkAsync(final long key, final Chunk chunk) {
+		// Cleared up front, so changes made during the save mark it dirty again
+		chunk.setDirty(false);
+		this.pendingSaves.put(key, chunk);
+		this.ioExecutor.execute(new ChunkLoadTask(-1, () -> {
+			try {
+				// Light changes still queued would otherwise be saved half done
+				this.lightEngine.complete(chunk);
+				this.chunkLoader.saveChunk(chunk);
+			} catch (final IOException exception) {
+				LOGGER.error("Failed to save chunk " + chunk.getX() + "," + chunk.getZ(), exception);
+			}
+			Polaris.getServer().getTickThread().execute(() -> this.pendingSaves.remove(key, chunk));
+		}));
+	}
+	
+	/**
+	 * Gets a block, see {@link #getChunk(int, int)} for chunks that are not loaded
+	 * 
+	 * @param x block X coordinate
+	 * @param y block Y coordinate
+	 * @param z block Z coordinate
+	 * @return the block, or null if its chunk is not loaded
+	 */
 	public Block getBlock(final int x, final int y, final int z) {
 		final Chunk chunk = this.getChunk(x, z);
-		return chunk.getBlock(x, y, z);
+		return chunk == null ? null : chunk.getBlock(x & 0xF, y, z & 0xF);
+	}
+	
+	/**
+	 * Sets a block and sends the change to the players viewing its chunk at the
+	 * end of the tick. A chunk that is not loaded starts loading and the block is
+	 * left as is. Must be called from the tick thread.
+	 * 
+	 * @param x    block X coordinate
+	 * @param y    block Y coordinate
+	 * @param z    block Z coordinate
+	 * @param id   block type
+	 * @param meta block metadata
+	 * @return true if the block was set, false if its chunk is not loaded yet
+	 */
+	public boolean setBlock(final int x, final int y, final int z, final int id, final int meta) {
+		final Chunk chunk = this.getChunk(x, z);
+		if (chunk == null) {
+			return false;
+		}
+		chunk.setBlock(x & 0xF, y, z & 0xF, id, meta);
+		this.changedChunks.add(chunk.getKey());
+		return true;
+	}
+	
+	/**
+	 * Checks whether all chunks containing a box of block columns are loaded,
+	 * starting to load the ones that are not
+	 */
+	private boolean isLoaded(final int minX, final int minZ, final int maxX, final int maxZ) {
+		boolean loaded = true;
+		for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+			for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+				loaded &= this.getChunk(chunkX << 4, chunkZ << 4) != null;
+			}
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Fills a box with one block, a chunk at a time, and sends the changes to the
+	 * players viewing those chunks at the end of the tick. Chunks are independent,
+	 * so large fills are spread over multiple threads. Nothing is changed unless
+	 * all chunks of the box are loaded. Must be called from the tick thread.
+	 * 
+	 * @param minX lowest block X coordinate
+	 * @param minY lowest block Y coordinate
+	 * @param minZ lowest block Z coordinate
+	 * @param maxX highest block X coordinate, inclusive
+	 * @param maxY highest block Y coordinate, inclusive
+	 * @param maxZ highest block Z coordinate, inclusive
+	 * @param id   block type
+	 * @param meta block metadata
+	 * @return true if the box was filled, false if some chunks are not loaded yet
+	 */
+	public boolean fill(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ,
+			final int id, final int meta) {
+		if (!this.isLoaded(minX, minZ, maxX, maxZ)) {
+			return false;
+		}
+		
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+			for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+				final Chunk chunk = this.getChunk(chunkX << 4, chunkZ << 4);
+				chunks.add(chunk);
+				this.changedChunks.add(chunk.getKey());
+			}
+		}
+		
+		(chunks.size() >= PARALLEL_FILL_CHUNKS ? chunks.parallelStream() : chunks.stream()).forEach(chunk -> {
+			final int baseX = chunk.getX() << 4;
+			final int baseZ = chunk.getZ() << 4;
+			chunk.fill(Math.max(minX, baseX) - baseX, minY, Math.max(minZ, baseZ) - baseZ,
+					Math.min(maxX, baseX + 15) - baseX, maxY, Math.min(maxZ, baseZ + 15) - baseZ, id, meta);
+		});
+		return true;
+	}
+	
+	/**
+	 * Copies the blocks of a box to another position, and sends the changes to
+	 * the players viewing the changed chunks at the end of the tick. Copies by
+	 * whole chunk sections take the section data as is, light included, others
+	 * go a row at a time. The boxes may overlap. Nothing is changed unless all
+	 * chunks of both boxes are loaded. Must be called from the tick thread.
+	 * 
+	 * @param minX lowest block X coordinate of the source
+	 * @param minY lowest block Y coordinate of the source
+	 * @param minZ lowest block Z coordinate of the source
+	 * @param maxX highest block X coordinate of the source, inclusive
+	 * @param maxY highest block Y coordinate of the source, inclusive
+	 * @param maxZ highest block Z coordinate of the source, inclusive
+	 * @param toX  lowest block X coordinate of the destination
+	 * @param toY  lowest block Y coordinate of the destination
+	 * @param toZ  lowest block Z coordinate of the destination
+	 * @return true if the box was copied, false if some chunks are not loaded yet
+	 */
+	public boolean copy(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ,
+			final int toX, final int toY, final int toZ) {
+		if (minX > maxX || minY > maxY || minZ > maxZ) {
+			return true;
+		}
+		
+		final int deltaX = toX - minX;
+		final int deltaY = toY - minY;
+		final int deltaZ = toZ - minZ;
+		// Both boxes are checked, so every chunk is asked to load in one go
+		final boolean sourceLoaded = this.isLoaded(minX, minZ, maxX, maxZ);
+		if (!this.isLoaded(toX, toZ, maxX + deltaX, maxZ + deltaZ) || !sourceLoaded) {
+			return false;
+		}
+		if (((minX | minY | minZ | toX | toY | toZ) & 0xF) == 0
+				&& ((maxX & maxY & maxZ) & 0xF) == 0xF && minY >= 0 && maxY < Chunk.DEPTH
+				&& toY + maxY - minY < Chunk.DEPTH && toY >= 0) {
+			this.copySections(minX >> 4, minY >> 4, minZ >> 4, maxX >> 4, maxY >> 4, maxZ >> 4,
+					deltaX >> 4, deltaY >> 4, deltaZ >> 4);
+			return true;
+		}
+		
+		// Rows are visited away from the destination, so overlapping rows are read
+		// before they are overwritten
+		final char[] row = new char[maxX - minX + 1];
+		final int stepY = deltaY > 0 ? -1 : 1;
+		final int stepZ = deltaZ > 0 ? -1 : 1;
+		for (int y = stepY > 0 ? minY : maxY; y >= minY && y <= maxY; y += stepY) {
+			if (y + deltaY < 0 || y + deltaY >= Chunk.DEPTH) {
+				continue;
+			}
+			for (int z = stepZ > 0 ? minZ : maxZ; z >= minZ && z <= maxZ; z += stepZ) {
+				for (int x = minX; x <= maxX;) {
+					final int length = Math.min(16 - (x & 0xF), maxX - x + 1);
+					this.getChunk(x, z).getTypes(x & 0xF, y, z & 0xF, row, x - minX, length);
+					x += length;
+				}
+				for (int x = toX; x <= toX + row.length - 1;) {
+					final int length = Math.min(16 - (x & 0xF), toX + row.length - x);
+					final Chunk chunk = this.getChunk(x, z + deltaZ);
+					chunk.setTypes(x & 0xF, y + deltaY, (z + deltaZ) & 0xF, row, x - toX, length);
+					this.changedChunks.add(chunk.getKey());
+					x += length;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Copies whole chunk sections, given in chunk and section coordinates. All
+	 * sections are copied before any is replaced, so the boxes may overlap.
+	 */
+	private void copySections(final int minX, final int minY, final int minZ, final int maxX, final int maxY,
+			final int maxZ, final int deltaX, final int deltaY, final int deltaZ) {
+		final int sizeY = maxY - minY + 1;
+		final int sizeZ = maxZ - minZ + 1;
+		final ChunkSection[] copies = new ChunkSection[(maxX - minX + 1) * sizeZ * sizeY];
+		for (int x = minX; x <= maxX; x++) {
+			for (int z = minZ; z <= maxZ; z++) {
+				final Chunk chunk = this.getChunk(x << 4, z << 4);
+				for (int y = minY; y <= maxY; y++) {
+					copies[((x - minX) * sizeZ + z - minZ) * sizeY + y - minY] = chunk.getSectionCopy(y);
+				}
+			}
+		}
+		for (int x = minX; x <= maxX; x++) {
+			for (int z = minZ; z <= maxZ; z++) {
+				final Chunk chunk = this.getChunk((x + deltaX) << 4, (z + deltaZ) << 4);
+				for (int y = minY; y <= maxY; y++) {
+					chunk.setSection(y + deltaY, copies[((x - minX) * sizeZ + z - minZ) * sizeY + y - minY]);
+				}
+				this.changedChunks.add(chunk.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Queues the sections of a chunk that were sent before their light was
+	 * computed to be sent again. Called from the tick thread.
+	 */
+	void lightChanged(final Chunk chunk) {
+		// The chunk may have been unloaded while it was being relit
+		if (this.chunks.get(chunk.getKey()) != chunk) {
+			return;
+		}
+		this.changedChunks.add(chunk.getKey());
+	}
+	
+	/**
+	 * Sends the block changes of this tick to the players that have the changed
+	 * chunks loaded. Players still waiting for a chunk get the changes with it.
+	 */
+	private void flushBlockChanges() {
+		if (this.changedChunks.isEmpty()) {
+			return;
+		}
+		
+		for (final LongIterator iterator = this.changedChunks.iterator(); iterator.hasNext();) {
+			final long key = iterator.nextLong();
+			final Chunk chunk = this.chunks.get(key);
+			if (chunk == null) {
+				continue;
+			}
+			final Set<Player> viewers = this.chunkPlayers.get(key);
+			if (viewers == null) {
+				chunk.clearChanges();
+				continue;
+			}
+			
+			Packet packet = chunk.flushChanges();
+			if (packet == null) {
+				continue;
+			}
+			if (viewers.size() > 1 && !(packet instanceof PreparedPacket)) {
+				// Encoded once for all viewers
+				packet = new PreparedPacket(packet);
+			}
+			for (final Player player : viewers) {
+				player.getClient().sendPacket(packet);
+			}
+			if (packet instanceof PreparedPacket) {
+				// Viewers retain it until it is written, the reference we hold is dropped
+				((PreparedPacket) packet).release();
+			}
+		}
+		this.changedChunks.clear();
 	}
 	
 	public Block getBlock(final Location location) {
 		return this.getBlock(location.getBlockX(), location.getBlockY(), location.getBlockZ());
 	}
 	
-	public Chunk getChunk(final int chunkX, final int chunkZ) {
-		return this.chunks[(chunkX >> 4)][(chunkZ >> 4)];
+	/**
+	 * Gets the chunk containing the given block coordinates, if it is loaded.
+	 * Never blocks: on the tick thread a chunk that is not loaded starts loading
+	 * through {@link #getChunkAsync(int, int)}, so it is there in a later tick.
+	 * 
+	 * @param x block X coordinate
+	 * @param z block Z coordinate
+	 * @return the chunk, or null if it is not loaded yet
+	 */
+	public Chunk getChunk(final int x, final int z) {
+		final Chunk chunk = this.getChunkAt(x >> 4, z >> 4);
+		if (chunk != null || !TickThread.isTickThread()) {
+			return chunk;
+		}
+		// Chunks that are still being saved come back right away
+		final CompletableFuture<Chunk> future = this.getChunkAsync(x >> 4, z >> 4);
+		return future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+	}
+	
+	/**
+	 * Gets the chunk at the given chunk coordinates, if it is loaded
+	 * 
+	 * @param chunkX chunk X coordinate
+	 * @param chunkZ chunk Z coordinate
+	 * @return the chunk, or null if it is not loaded
+	 */
+	public Chunk getChunkAt(final int chunkX, final int chunkZ) {
+		return this.chunks.get(Chunk.getChunkKey(chunkX, chunkZ));
+	}
+	
+	/**
+	 * Gets the amount of loaded chunks
+	 * 
+	 * @return loaded chunk count
+	 */
+	public int getLoadedChunkCount() {
+		return this.chunks.size();
 	}
 	
 	public Chunk getChunk(final Location location) {
 		return this.getChunk(location.getBlockX(), location.getBlockZ());
 	}
 	
+	/**
+	 * Gets the entities in the chunk at the given chunk coordinates. Must be
+	 * called from the tick thread.
+	 * 
+	 * @param chunkX chunk X coordinate
+	 * @param chunkZ chunk Z coordinate
+	 * @return unmodifiable view of the entities in the chunk
+	 */
+	public Set<Entity> getEntities(final int chunkX, final int chunkZ) {
+		final Set<Entity> entities = this.chunkEntities.get(Chunk.getChunkKey(chunkX, chunkZ));
+		return entities == null ? Collections.emptySet() : Collections.unmodifiableSet(entities);
+	}
+	
+	/**
+	 * Adds an entity to the spatial index. Must be called from the tick thread.
+	 * The chunk does not need to be loaded.
+	 * 
+	 * @param entity   entity to add
+	 * @param chunkKey key of the chunk the entity is in
+	 */
+	public void addEntity(final Entity entity, final long chunkKey) {
+		this.chunkEntities.computeIfAbsent(chunkKey, key -> new HashSet<Entity>()).add(entity);
+	}
+	
+	/**
+	 * Removes an entity from the spatial index. Must be called from the tick
+	 * thread.
+	 * 
+	 * @param entity   entity to remove
+	 * @param chunkKey key of the chunk the entity was in
+	 */
+	public void removeEntity(final Entity entity, final long chunkKey) {
+		final Set<Entity> entities = this.chunkEntities.get(chunkKey);
+		if (entities != null && entities.remove(entity) && entities.isEmpty()) {
+			this.chunkEntities.remove(chunkKey);
+		}
+	}
+	
 	public Location getSpawnPoint() {
 		return this.spawnPoint.clone();
 	}
@@ -113,4 +823,52 @@ public final class World {
 		});
 	}
 
+	/**
+	 * Loads or generates a square of chunks, split in halves until the parts are
+	 * small enough to not be worth forking
+	 */
+	@RequiredArgsConstructor
+	private final class PregenerateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int CHUNKS_PER_TASK = 4;
+		
+		private final int minX, minZ, diameter;
+		private final Chunk[] results;
+		// Range of indices into the square, in rows of the diameter
+		private final int from, to;
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= CHUNKS_PER_TASK) {
+				for (int i = this.from; i < this.to; i++) {
+					this.results[i] = World.this.loadChunk(this.minX + i % this.diameter, this.minZ + i / this.diameter);
+				}
+				return;
+			}
+			final int middle = (this.from + this.to) >>> 1;
+			invokeAll(new PregenerateTask(this.minX, this.minZ, this.diameter, this.results, this.from, middle),
+					new PregenerateTask(this.minX, this.minZ, this.diameter, this.results, middle, this.to));
+		}
+	}
+
+	/**
+	 * A chunk load or save on the I/O threads. Loads are ordered by distance to
+	 * the nearest player at the time they were requested, saves go first.
+	 */
+	@RequiredArgsConstructor
+	private static final class ChunkLoadTask implements Runnable, Comparable<ChunkLoadTask> {
+		private final int distance;
+		private final Runnable task;
+
+		@Override
+		public void run() {
+			this.task.run();
+		}
+
+		@Override
+		public int compareTo(final ChunkLoadTask other) {
+			return Integer.compare(this.distance, other.distance);
+		}
+	}
+
 }
@@ -0,0 +1,282 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.github.steveice10.opennbt.NBTIO;
+import com.github.steveice10.opennbt.tag.builtin.ByteArrayTag;
+import com.github.steveice10.opennbt.tag.builtin.ByteTag;
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.github.steveice10.opennbt.tag.builtin.IntArrayTag;
+import com.github.steveice10.opennbt.tag.builtin.IntTag;
+import com.github.steveice10.opennbt.tag.builtin.ListTag;
+import com.github.steveice10.opennbt.tag.builtin.LongTag;
+import com.github.steveice10.opennbt.tag.builtin.Tag;
+import com.rammelkast.polaris.util.NibbleArray;
+import com.rammelkast.polaris.world.Chunk;
+import com.rammelkast.polaris.world.Chunk.ChunkSection;
+import com.rammelkast.polaris.world.SectionStorage;
+import com.rammelkast.polaris.world.World;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/**
+ * Loads and saves chunks in the anvil format, as used by vanilla 1.8
+ */
+public final class AnvilChunkLoader {
+
+	private static final int SECTION_SIZE = Chunk.WIDTH * Chunk.HEIGHT * 16;
+	
+	private final File regionDirectory;
+	private final Long2ObjectMap<RegionFile> regions = new Long2ObjectOpenHashMap<RegionFile>();
+
+	public AnvilChunkLoader(final File worldDirectory) {
+		this.regionDirectory = new File(worldDirectory, "region");
+	}
+
+	/**
+	 * Loads a chunk from its region file
+	 * 
+	 * @param world world the chunk belongs to
+	 * @param x     chunk X coordinate
+	 * @param z     chunk Z coordinate
+	 * @return the chunk, or null if it has not been saved before
+	 * @throws IOException if the chunk could not be read or is malformed
+	 */
+	public Chunk loadChunk(final World world, final int x, final int z) throws IOException {
+		final RegionFile region = this.getRegion(x, z, false);
+		if (region == null) {
+			return null;
+		}
+
+		final CompoundTag level;
+		try (final DataInputStream in = region.readChunk(x, z)) {
+			if (in == null) {
+				return null;
+			}
+			final Tag root;
+			try {
+				root = NBTIO.readTag((InputStream) in);
+			} catch (final RuntimeException exception) {
+				// Garbage lengths in the NBT surface as unchecked exceptions
+				throw new IOException("Chunk " + x + "," + z + " has malformed NBT", exception);
+			}
+			if (!(root instanceof CompoundTag) || !(((CompoundTag) root).get("Level") instanceof CompoundTag)) {
+				throw new IOException("Chunk " + x + "," + z + " has no level data");
+			}
+			level = ((CompoundTag) root).get("Level");
+		}
+
+		final Chunk chunk = new Chunk(world, x, z);
+		final ChunkSection[] sections = new ChunkSection[Chunk.DEPTH / 16];
+		final ListTag sectionTags = getTag(level, "Sections", ListTag.class, false);
+		if (sectionTags != null) {
+			for (int i = 0; i < sectionTags.size(); i++) {
+				final Tag sectionTag = sectionTags.get(i);
+				if (!(sectionTag instanceof CompoundTag)) {
+					throw new IOException("Section " + i + " of chunk " + x + "," + z + " is not a compound");
+				}
+				final int y = getTag((CompoundTag) sectionTag, "Y", ByteTag.class, true).getValue();
+				if (y < 0 || y >= sections.length) {
+					continue;
+				}
+				sections[y] = readSection((CompoundTag) sectionTag, chunk.getStorageType());
+			}
+		}
+
+		chunk.initializeSections(sections);
+		final ByteArrayTag biomes = getTag(level, "Biomes", ByteArrayTag.class, false);
+		if (biomes != null && biomes.getValue().length == Chunk.WIDTH * Chunk.HEIGHT) {
+			chunk.setBiomes(biomes.getValue());
+		}
+		final IntArrayTag heightMap = getTag(level, "HeightMap", IntArrayTag.class, false);
+		if (heightMap != null && heightMap.getValue().length == Chunk.WIDTH * Chunk.HEIGHT) {
+			chunk.setHeightMap(heightMap.getValue());
+		} else {
+			chunk.automaticHeightMap();
+		}
+		final ByteTag populated = getTag(level, "TerrainPopulated", ByteTag.class, false);
+		chunk.setPopulated(populated != null && populated.getValue() != 0);
+		chunk.setDirty(false);
+		return chunk;
+	}
+
+	/**
+	 * Saves a chunk to its region file. The chunk is serialized under its lock,
+	 * so it may be changed meanwhile, only the disk write happens without it.
+	 * 
+	 * @param chunk chunk to save
+	 * @throws IOException if the chunk could not be written
+	 */
+	public void saveChunk(final Chunk chunk) throws IOException {
+		final byte[] data;
+		synchronized (chunk) {
+			data = this.serialize(chunk);
+		}
+		this.getRegion(chunk.getX(), chunk.getZ(), true).writeChunk(chunk.getX(), chunk.getZ(), data);
+	}
+
+	private byte[] serialize(final Chunk chunk) throws IOException {
+		final CompoundTag level = new CompoundTag("Level");
+		level.put(new IntTag("xPos", chunk.getX()));
+		level.put(new IntTag("zPos", chunk.getZ()));
+		level.put(new LongTag("LastUpdate", 0));
+		level.put(new ByteTag("TerrainPopulated", (byte) (chunk.isPopulated() ? 1 : 0)));
+
+		final ListTag sectionTags = new ListTag("Sections", CompoundTag.class);
+		final ChunkSection[] sections = chunk.getSections();
+		for (int y = 0; y < sections.length; y++) {
+			if (sections[y] != null && sections[y].count > 0) {
+				sectionTags.add(writeSection(sections[y], y));
+			}
+		}
+		level.put(sectionTags);
+
+		final byte[] biomes = new byte[Chunk.WIDTH * Chunk.HEIGHT];
+		final int[] heightMap = new int[Chunk.WIDTH * Chunk.HEIGHT];
+		for (int z = 0; z < Chunk.HEIGHT; z++) {
+			for (int x = 0; x < Chunk.WIDTH; x++) {
+				biomes[z * Chunk.WIDTH + x] = (byte) chunk.getBiome(x, z);
+				heightMap[z * Chunk.WIDTH + x] = chunk.getHeight(x, z);
+			}
+		}
+		level.put(new ByteArrayTag("Biomes", biomes));
+		level.put(new IntArrayTag("HeightMap", heightMap));
+		level.put(new ListTag("Entities", CompoundTag.class));
+		level.put(new ListTag("TileEntities", CompoundTag.class));
+
+		final CompoundTag root = new CompoundTag("");
+		root.put(level);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+		NBTIO.writeTag(out, root);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Closes all open region files
+	 */
+	public synchronized void close() throws IOException {
+		for (final RegionFile region : this.regions.values()) {
+			region.close();
+		}
+		this.regions.clear();
+	}
+
+	private synchronized RegionFile getRegion(final int chunkX, final int chunkZ, final boolean create)
+			throws IOException {
+		final int regionX = chunkX >> 5;
+		final int regionZ = chunkZ >> 5;
+		final long key = Chunk.getChunkKey(regionX, regionZ);
+		RegionFile region = this.regions.get(key);
+		if (region == null) {
+			final File file = new File(this.regionDirectory, "r." + regionX + "." + regionZ + ".mca");
+			if (!file.exists()) {
+				if (!create) {
+					return null;
+				}
+				this.regionDirectory.mkdirs();
+			}
+			region = new RegionFile(file);
+			this.regions.put(key, region);
+		}
+		return region;
+	}
+
+	private static ChunkSection readSection(final CompoundTag tag, final SectionStorage.Type storageType)
+			throws IOException {
+		final byte[] blocks = getArray(tag, "Blocks", SECTION_SIZE, true);
+		final NibbleArray data = new NibbleArray(getArray(tag, "Data", SECTION_SIZE / 2, true));
+		final byte[] addData = getArray(tag, "Add", SECTION_SIZE / 2, false);
+		final NibbleArray add = addData == null ? null : new NibbleArray(addData);
+
+		final char[] types = new char[SECTION_SIZE];
+		for (int i = 0; i < SECTION_SIZE; i++) {
+			int type = blocks[i] & 0xFF;
+			if (add != null) {
+				type |= add.get(i) << 8;
+			}
+			types[i] = (char) ((type << 4) | data.get(i));
+		}
+
+		final byte[] skyLight = getArray(tag, "SkyLight", SECTION_SIZE / 2, true);
+		final byte[] blockLight = getArray(tag, "BlockLight", SECTION_SIZE / 2, true);
+		return new ChunkSection(storageType.create(types, skyLight, blockLight));
+	}
+
+	private static byte[] getArray(final CompoundTag parent, final String name, final int length,
+			final boolean required) throws IOException {
+		final ByteArrayTag tag = getTag(parent, name, ByteArrayTag.class, required);
+		if (tag == null) {
+			return null;
+		}
+		if (tag.getValue().length != length) {
+			throw new IOException(name + " holds " + tag.getValue().length + " bytes instead of " + length);
+		}
+		return tag.getValue();
+	}
+
+	private static <T extends Tag> T getTag(final CompoundTag parent, final String name, final Class<T> type,
+			final boolean required) throws IOException {
+		final Tag tag = parent.get(name);
+		if (tag == null) {
+			if (required) {
+				throw new IOException("Missing " + name + " tag");
+			}
+			return null;
+		}
+		if (!type.isInstance(tag)) {
+			throw new IOException(name + " is a " + tag.getClass().getSimpleName() + " instead of a "
+					+ type.getSimpleName());
+		}
+		return type.cast(tag);
+	}
+
+	private static CompoundTag writeSection(final ChunkSection section, final int y) {
+		final byte[] blocks = new byte[SECTION_SIZE];
+		final NibbleArray data = new NibbleArray(SECTION_SIZE);
+		final NibbleArray add = new NibbleArray(SECTION_SIZE);
+		for (int i = 0; i < SECTION_SIZE; i++) {
+			final char type = section.getType(i);
+			blocks[i] = (byte) (type >> 4);
+			data.set(i, (byte) (type & 0xF));
+			add.set(i, (byte) (type >> 12));
+		}
+
+		final CompoundTag tag = new CompoundTag("");
+		tag.put(new ByteTag("Y", (byte) y));
+		tag.put(new ByteArrayTag("Blocks", blocks));
+		if (add.indexOfNonZero(0, SECTION_SIZE) >= 0) {
+			tag.put(new ByteArrayTag("Add", add.getRawData()));
+		}
+		tag.put(new ByteArrayTag("Data", data.getRawData()));
+		final byte[] blockLight = new byte[SECTION_SIZE / 2];
+		section.getStorage().writeBlockLight(Unpooled.wrappedBuffer(blockLight).clear());
+		tag.put(new ByteArrayTag("BlockLight", blockLight));
+		final byte[] skyLight = new byte[SECTION_SIZE / 2];
+		section.getStorage().writeSkyLight(Unpooled.wrappedBuffer(skyLight).clear());
+		tag.put(new ByteArrayTag("SkyLight", skyLight));
+		return tag;
+	}
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A single anvil region file, holding 32x32 chunks. All reads and writes use
+ * positional {@link FileChannel} calls, so no stream state is kept and only the
+ * sectors of the requested chunk are touched.
+ */
+public final class RegionFile {
+
+	public static final int REGION_SIZE = 32;
+	
+	private static final int SECTOR_SIZE = 4096;
+	private static final int HEADER_SECTORS = 2;
+	private static final byte COMPRESSION_GZIP = 1;
+	private static final byte COMPRESSION_ZLIB = 2;
+
+	private final FileChannel channel;
+	/**
+	 * Location of each chunk, sector offset in the upper 24 bits and sector count
+	 * in the lower 8 bits
+	 */
+	private final int[] offsets = new int[REGION_SIZE * REGION_SIZE];
+	private final BitSet usedSectors = new BitSet();
+
+	public RegionFile(final File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.usedSectors.set(0, HEADER_SECTORS);
+
+		if (this.channel.size() < HEADER_SECTORS * SECTOR_SIZE) {
+			// New file, write an empty header
+			this.channel.write(ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE), 0);
+			return;
+		}
+
+		final ByteBuffer header = ByteBuffer.allocate(this.offsets.length * 4);
+		readFully(header, 0);
+		header.flip();
+		final long sectorCount = this.channel.size() / SECTOR_SIZE;
+		for (int i = 0; i < this.offsets.length; i++) {
+			final int offset = header.getInt();
+			final int sector = offset >>> 8;
+			final int count = offset & 0xFF;
+			if (offset == 0 || sector < HEADER_SECTORS || sector + count > sectorCount) {
+				// Missing or corrupt, treated as absent
+				continue;
+			}
+			this.offsets[i] = offset;
+			this.usedSectors.set(sector, sector + count);
+		}
+	}
+
+	/**
+	 * Reads the decompressed data of a chunk
+	 * 
+	 * @param x chunk X coordinate within the region
+	 * @param z chunk Z coordinate within the region
+	 * @return stream of the chunk NBT, or null if the chunk is not present
+	 * @throws IOException if the chunk could not be read
+	 */
+	public synchronized DataInputStream readChunk(final int x, final int z) throws IOException {
+		final int offset = this.offsets[index(x, z)];
+		if (offset == 0) {
+			return null;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate((offset & 0xFF) * SECTOR_SIZE);
+		readFully(buffer, (long) (offset >>> 8) * SECTOR_SIZE);
+		buffer.flip();
+		final int length = buffer.getInt();
+		if (length <= 1 || length > buffer.remaining()) {
+			throw new IOException("Invalid length " + length + " for chunk " + x + "," + z);
+		}
+
+		final byte compression = buffer.get();
+		final ByteArrayInputStream data = new ByteArrayInputStream(buffer.array(), buffer.position(), length - 1);
+		switch (compression) {
+		case COMPRESSION_GZIP:
+			return new DataInputStream(new GZIPInputStream(data));
+		case COMPRESSION_ZLIB:
+			return new DataInputStream(new InflaterInputStream(data));
+		default:
+			throw new IOException("Unknown compression type " + compression + " for chunk " + x + "," + z);
+		}
+	}
+
+	/**
+	 * Compresses and writes the data of a chunk, reusing its current sectors if
+	 * the data still fits
+	 * 
+	 * @param x    chunk X coordinate within the region
+	 * @param z    chunk Z coordinate within the region
+	 * @param data uncompressed chunk NBT
+	 * @throws IOException if the chunk could not be written
+	 */
+	public synchronized void writeChunk(final int x, final int z, final byte[] data) throws IOException {
+		final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 5);
+		compressed.write(new byte[5], 0, 5); // Length and compression type
+		try (final DeflaterOutputStream deflater = new DeflaterOutputStream(compressed)) {
+			deflater.write(data);
+		}
+
+		final int length = compressed.size();
+		final int sectorsNeeded = (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+		if (sectorsNeeded > 0xFF) {
+			throw new IOException("Chunk " + x + "," + z + " is too large (" + length + " bytes)");
+		}
+
+		// Padded to whole sectors, so reads never run past the end of the file
+		final ByteBuffer buffer = ByteBuffer.allocate(sectorsNeeded * SECTOR_SIZE);
+		buffer.put(compressed.toByteArray());
+		buffer.putInt(0, length - 4);
+		buffer.put(4, COMPRESSION_ZLIB);
+		buffer.clear();
+
+		final int index = index(x, z);
+		final int offset = this.offsets[index];
+		int sector = offset >>> 8;
+		if (offset == 0 || (offset & 0xFF) != sectorsNeeded) {
+			if (offset != 0) {
+				this.usedSectors.clear(sector, sector + (offset & 0xFF));
+			}
+			sector = this.findFreeSectors(sectorsNeeded);
+			this.usedSectors.set(sector, sector + sectorsNeeded);
+		}
+
+		this.channel.write(buffer, (long) sector * SECTOR_SIZE);
+		this.setOffset(index, (sector << 8) | sectorsNeeded);
+	}
+
+	public synchronized void close() throws IOException {
+		this.channel.force(false);
+		this.channel.close();
+	}
+
+	private int findFreeSectors(final int count) {
+		int start = this.usedSectors.nextClearBit(HEADER_SECTORS);
+		while (true) {
+			final int end = this.usedSectors.nextSetBit(start);
+			if (end == -1 || end - start >= count) {
+				return start;
+			}
+			start = this.usedSectors.nextClearBit(end);
+		}
+	}
+
+	private void setOffset(final int index, final int offset) throws IOException {
+		this.offsets[index] = offset;
+		final ByteBuffer location = ByteBuffer.allocate(4).putInt(0, offset);
+		final ByteBuffer timestamp = ByteBuffer.allocate(4).putInt(0, (int) (System.currentTimeMillis() / 1000L));
+		this.channel.write(location, index * 4L);
+		this.channel.write(timestamp, SECTOR_SIZE + index * 4L);
+	}
+
+	private void readFully(final ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = this.channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+	}
+
+	private static int index(final int x, final int z) {
+		return (x & (REGION_SIZE - 1)) + (z & (REGION_SIZE - 1)) * REGION_SIZE;
+	}
+
+}
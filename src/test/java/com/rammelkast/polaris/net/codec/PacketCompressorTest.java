@@ -0,0 +1,112 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.net.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.rammelkast.polaris.Polaris;
+import com.rammelkast.polaris.net.packet.play.out.PacketOutChunkData;
+import com.rammelkast.polaris.profile.Profiler;
+import com.rammelkast.polaris.world.Chunk;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Round trip of the compression stage, and the amount of chunk data sent for
+ * a single join with and without compression.
+ */
+public class PacketCompressorTest {
+
+	private static final int THRESHOLD = 256;
+
+	@Test
+	public void roundTrip() {
+		final EmbeddedChannel server = new EmbeddedChannel(new PacketFramer(),
+				new PacketCompressor(THRESHOLD, new Profiler()));
+		final EmbeddedChannel client = new EmbeddedChannel(new PacketFramer(),
+				new PacketCompressor(THRESHOLD, new Profiler()));
+
+		for (final int size : new int[] { 1, THRESHOLD - 1, THRESHOLD, 40000 }) {
+			final byte[] payload = new byte[size];
+			for (int i = 0; i < size; i++) {
+				payload[i] = (byte) (i % 7);
+			}
+
+			assertTrue(server.writeOutbound(Unpooled.wrappedBuffer(payload)));
+			final ByteBuf frame = server.readOutbound();
+			assertTrue(client.writeInbound(frame));
+			final ByteBuf decoded = client.readInbound();
+			assertEquals(size, decoded.readableBytes());
+			assertTrue(ByteBufUtil.equals(Unpooled.wrappedBuffer(payload), decoded));
+			decoded.release();
+		}
+
+		server.finishAndReleaseAll();
+		client.finishAndReleaseAll();
+	}
+
+	@Test
+	public void bytesPerJoin() {
+		final long raw = this.joinBytes(false);
+		final long compressed = this.joinBytes(true);
+		assertTrue("Chunk bytes per join at view distance " + Polaris.VIEW_DISTANCE + ": " + raw
+				+ " uncompressed, " + compressed + " compressed", compressed < raw);
+	}
+
+	private long joinBytes(final boolean compression) {
+		final EmbeddedChannel channel = compression
+				? new EmbeddedChannel(new PacketFramer(), new PacketCompressor(THRESHOLD, new Profiler()),
+						new PacketEncoder(null))
+				: new EmbeddedChannel(new PacketFramer(), new PacketEncoder(null));
+
+		long bytes = 0;
+		final int diameter = Polaris.VIEW_DISTANCE * 2 + 1;
+		for (int x = 0; x < diameter; x++) {
+			for (int z = 0; z < diameter; z++) {
+				final Chunk chunk = createChunk(x, z);
+				channel.writeOutbound(new PacketOutChunkData(chunk.toMessage(true)));
+				chunk.releaseCache();
+				final ByteBuf frame = channel.readOutbound();
+				bytes += frame.readableBytes();
+				frame.release();
+			}
+		}
+		channel.finishAndReleaseAll();
+		return bytes;
+	}
+
+	private static Chunk createChunk(final int x, final int z) {
+		final Chunk chunk = new Chunk(null, x, z);
+		chunk.initializeSections();
+		for (int x1 = 0; x1 < Chunk.WIDTH; x1++) {
+			for (int z1 = 0; z1 < Chunk.HEIGHT; z1++) {
+				chunk.setBlock(x1, 1, z1, 7, 0);
+				chunk.setBlock(x1, 2, z1, 1, 0);
+				chunk.setBlock(x1, 3, z1, 3, 0);
+				chunk.setBlock(x1, 4, z1, 2, 0);
+			}
+		}
+		return chunk;
+	}
+
+}
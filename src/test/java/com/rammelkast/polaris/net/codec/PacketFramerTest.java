@@ -0,0 +1,134 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.net.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Splitting of inbound data into frames, however it is fragmented.
+ */
+public class PacketFramerTest {
+
+	private EmbeddedChannel channel;
+
+	@Before
+	public void setUp() {
+		this.channel = new EmbeddedChannel(new PacketFramer());
+	}
+
+	@After
+	public void tearDown() {
+		this.channel.finishAndReleaseAll();
+	}
+
+	@Test
+	public void severalFramesInOneBuffer() {
+		assertTrue(this.channel.writeInbound(buffer(1, 0x0A, 2, 0x0B, 0x0C, 3, 0x0D, 0x0E, 0x0F)));
+		assertFrame(0x0A);
+		assertFrame(0x0B, 0x0C);
+		assertFrame(0x0D, 0x0E, 0x0F);
+		assertNull(this.channel.readInbound());
+	}
+
+	@Test
+	public void splitLengthPrefix() {
+		// 200 takes two bytes as a VarInt, the second one arrives with the body
+		final int[] rest = new int[201];
+		rest[0] = 0x01;
+		for (int i = 1; i < rest.length; i++) {
+			rest[i] = i;
+		}
+
+		assertFalse(this.channel.writeInbound(buffer(0xC8)));
+		assertTrue(this.channel.writeInbound(buffer(rest)));
+		assertFrame(Arrays.copyOfRange(rest, 1, rest.length));
+	}
+
+	@Test
+	public void splitBody() {
+		assertFalse(this.channel.writeInbound(buffer(4, 0x01, 0x02)));
+		assertFalse(this.channel.writeInbound(buffer(0x03)));
+		assertTrue(this.channel.writeInbound(buffer(0x04, 2)));
+		assertFrame(0x01, 0x02, 0x03, 0x04);
+		assertNull(this.channel.readInbound());
+
+		// The next frame starts right after the previous one
+		assertTrue(this.channel.writeInbound(buffer(0x05, 0x06)));
+		assertFrame(0x05, 0x06);
+	}
+
+	@Test
+	public void zeroLengthFrame() {
+		assertTrue(this.channel.writeInbound(buffer(0, 1, 0x07)));
+		assertFrame();
+		assertFrame(0x07);
+	}
+
+	@Test(expected = CorruptedFrameException.class)
+	public void lengthWiderThan21Bit() {
+		this.channel.writeInbound(buffer(0x80, 0x80, 0x80, 0x01));
+	}
+
+	@Test
+	public void slicesOutliveCumulation() {
+		final ByteBuf input = buffer(2, 0x01, 0x02, 2, 0x03, 0x04);
+		assertTrue(this.channel.writeInbound(input));
+		final ByteBuf first = this.channel.readInbound();
+		final ByteBuf second = this.channel.readInbound();
+
+		// The decoder released its reference, each frame still holds one
+		assertEquals(2, input.refCnt());
+		first.release();
+		assertEquals(1, input.refCnt());
+		assertTrue(ByteBufUtil.equals(buffer(0x03, 0x04), second));
+		second.release();
+		assertEquals(0, input.refCnt());
+	}
+
+	private void assertFrame(final int... body) {
+		final ByteBuf frame = this.channel.readInbound();
+		try {
+			assertTrue(ByteBufUtil.equals(buffer(body), frame));
+		} finally {
+			frame.release();
+		}
+	}
+
+	private static ByteBuf buffer(final int... bytes) {
+		final ByteBuf buffer = Unpooled.buffer(bytes.length);
+		for (final int value : bytes) {
+			buffer.writeByte(value);
+		}
+		return buffer;
+	}
+
+}
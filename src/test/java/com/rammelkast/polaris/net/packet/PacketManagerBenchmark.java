@@ -0,0 +1,96 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.net.packet;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+import com.rammelkast.polaris.net.NetClient.NetState;
+import com.rammelkast.polaris.net.packet.play.in.PacketInPlayerPositionLook;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Decoding of movement packets through the factory tables, against the
+ * reflective class lookup they replaced. Run with {@code -P benchmark}.
+ */
+public class PacketManagerBenchmark {
+
+	private static final Logger LOGGER = LogManager.getLogger(PacketManagerBenchmark.class);
+	private static final int PACKETS = 5000000;
+
+	// The lookup as it was before the factory tables
+	private static final Map<Integer, Class<? extends Packet>> PLAY = new HashMap<Integer, Class<? extends Packet>>();
+
+	static {
+		PLAY.put(0x06, PacketInPlayerPositionLook.class);
+	}
+
+	@Test
+	public void decodePositionLook() throws Exception {
+		final ByteBuf buffer = Unpooled.buffer();
+		final PacketWrapper wrapper = new PacketWrapper(buffer, null);
+		wrapper.writeVarInt(0x06);
+		buffer.writeDouble(12.5).writeDouble(64).writeDouble(-3.25);
+		buffer.writeFloat(90).writeFloat(-10).writeBoolean(true);
+
+		// Warm up both before measuring
+		double sum = 0;
+		for (int i = 0; i < PACKETS / 10; i++) {
+			sum += this.decodeReflective(buffer, wrapper).getX() + this.decode(buffer, wrapper).getX();
+		}
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < PACKETS; i++) {
+			sum += this.decodeReflective(buffer, wrapper).getX();
+		}
+		final long reflective = System.nanoTime() - startTime;
+
+		startTime = System.nanoTime();
+		for (int i = 0; i < PACKETS; i++) {
+			sum += this.decode(buffer, wrapper).getX();
+		}
+		final long tables = System.nanoTime() - startTime;
+
+		assertEquals(12.5 * (PACKETS / 10 * 2 + PACKETS * 2), sum, 0);
+		LOGGER.info("Position look decoding: {} ns per packet by reflection, {} ns by factory table",
+				reflective / (double) PACKETS, tables / (double) PACKETS);
+	}
+
+	private PacketInPlayerPositionLook decodeReflective(final ByteBuf buffer, final PacketWrapper wrapper)
+			throws Exception {
+		buffer.readerIndex(0);
+		final Packet packet = PLAY.get(wrapper.readVarInt()).getDeclaredConstructor().newInstance();
+		packet.read(wrapper);
+		return (PacketInPlayerPositionLook) packet;
+	}
+
+	private PacketInPlayerPositionLook decode(final ByteBuf buffer, final PacketWrapper wrapper) {
+		buffer.readerIndex(0);
+		final Packet packet = PacketManager.fetchPacket(wrapper.readVarInt(), NetState.PLAY);
+		packet.read(wrapper);
+		return (PacketInPlayerPositionLook) packet;
+	}
+
+}
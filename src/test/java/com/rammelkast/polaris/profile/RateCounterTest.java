@@ -0,0 +1,60 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.profile;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Rates reported over fixed windows, regardless of when they are queried.
+ */
+public class RateCounterTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void lastCompletedWindow() {
+		final RateCounter counter = new RateCounter(0);
+		counter.add(5, SECOND / 2);
+		// The first window has not ended yet
+		assertEquals(0, counter.getRate(SECOND - 1), 0);
+
+		counter.add(3, SECOND + 1);
+		// Every query in the second window sees the first one
+		assertEquals(5, counter.getRate(SECOND + 2), 0);
+		assertEquals(5, counter.getRate(2 * SECOND - 1), 0);
+
+		counter.add(7, 2 * SECOND + SECOND / 2);
+		assertEquals(3, counter.getRate(2 * SECOND + SECOND / 2), 0);
+		assertEquals(15, counter.getTotal());
+	}
+
+	@Test
+	public void idleWindows() {
+		final RateCounter counter = new RateCounter(0);
+		counter.add(4, SECOND / 2);
+		// Nothing was counted in the window before the current one
+		assertEquals(0, counter.getRate(3 * SECOND + SECOND / 2), 0);
+
+		counter.add(2, 4 * SECOND - 1);
+		assertEquals(2, counter.getRate(4 * SECOND), 0);
+	}
+
+}
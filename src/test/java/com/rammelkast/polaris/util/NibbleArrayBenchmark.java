@@ -0,0 +1,80 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * How the range operations of the nibble array compare in speed to looping
+ * over single nibbles. Run with {@code -P benchmark}.
+ */
+public class NibbleArrayBenchmark {
+
+	private static final Logger LOGGER = LogManager.getLogger(NibbleArrayBenchmark.class);
+
+	@Test
+	public void rangeSpeed() {
+		final NibbleArray light = new NibbleArray(4096);
+		final NibbleArray other = new NibbleArray(4096);
+		for (int i = 0; i < 4096; i++) {
+			light.set(i, (byte) (i % 13));
+			other.set(i, (byte) (i % 7));
+		}
+
+		final int runs = 20000;
+		// Warm up before measuring
+		for (int run = 0; run < runs; run++) {
+			light.max(other, 0, 4096);
+			light.count(0, 4096, (byte) 3);
+			byNibble(light, other);
+		}
+
+		int wordCount = 0;
+		long startTime = System.nanoTime();
+		for (int run = 0; run < runs; run++) {
+			light.max(other, 0, 4096);
+			wordCount += light.count(0, 4096, (byte) 3);
+		}
+		final long words = System.nanoTime() - startTime;
+
+		int nibbleCount = 0;
+		startTime = System.nanoTime();
+		for (int run = 0; run < runs; run++) {
+			nibbleCount += byNibble(light, other);
+		}
+		final long nibbles = System.nanoTime() - startTime;
+		assertEquals(wordCount, nibbleCount);
+		LOGGER.info("Nibble array: max and count of a section in {} ns by word, {} ns by nibble", words / runs,
+				nibbles / runs);
+	}
+
+	private static int byNibble(final NibbleArray light, final NibbleArray other) {
+		int count = 0;
+		for (int i = 0; i < 4096; i++) {
+			light.set(i, (byte) Math.max(light.get(i), other.get(i)));
+			if (light.get(i) == 3) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
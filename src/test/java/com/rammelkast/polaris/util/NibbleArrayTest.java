@@ -0,0 +1,87 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Range operations of the nibble array against a plain byte per nibble.
+ */
+public class NibbleArrayTest {
+
+	@Test
+	public void rangesMatchArray() {
+		final Random random = new Random(42);
+		for (int run = 0; run < 10000; run++) {
+			final int size = 2 + 2 * random.nextInt(64);
+			final byte[] expected = new byte[size];
+			final byte[] otherExpected = new byte[size];
+			final NibbleArray array = new NibbleArray(size);
+			final NibbleArray other = new NibbleArray(size);
+			for (int i = 0; i < size; i++) {
+				expected[i] = (byte) random.nextInt(16);
+				otherExpected[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(16) : 0);
+				array.set(i, expected[i]);
+				other.set(i, otherExpected[i]);
+			}
+
+			final int from = random.nextInt(size + 1);
+			final int to = from + random.nextInt(size - from + 1);
+			final byte value = (byte) random.nextInt(16);
+			int expectedIndex = -1;
+			int expectedCount = 0;
+			for (int i = from; i < to; i++) {
+				if (expectedIndex < 0 && otherExpected[i] != 0) {
+					expectedIndex = i;
+				}
+				if (expected[i] == value) {
+					expectedCount++;
+				}
+			}
+			assertEquals(expectedIndex, other.indexOfNonZero(from, to));
+			assertEquals(expectedCount, array.count(from, to, value));
+
+			switch (run % 3) {
+			case 0:
+				array.fill(from, to, value);
+				for (int i = from; i < to; i++) {
+					expected[i] = value;
+				}
+				break;
+			case 1:
+				final int sourceIndex = random.nextInt(size - (to - from) + 1);
+				array.copy(other, sourceIndex, from, to - from);
+				System.arraycopy(otherExpected, sourceIndex, expected, from, to - from);
+				break;
+			default:
+				array.max(other, from, to);
+				for (int i = from; i < to; i++) {
+					expected[i] = (byte) Math.max(expected[i], otherExpected[i]);
+				}
+				break;
+			}
+			for (int i = 0; i < size; i++) {
+				assertEquals(expected[i], array.get(i));
+			}
+		}
+	}
+
+}
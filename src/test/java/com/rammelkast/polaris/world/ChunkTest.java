@@ -0,0 +1,145 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.rammelkast.polaris.net.packet.play.out.PacketOutChunkData.ChunkDataMessage;
+
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * Cached chunk messages against freshly encoded ones, and the height map
+ * against scanning every column.
+ */
+public class ChunkTest {
+
+	@Test
+	public void cachedMessagesFollowChanges() {
+		final Random random = new Random(3);
+		final Chunk chunk = createChunk(random);
+		final boolean[] skylight = { true, false, true };
+		final boolean[] entireChunk = { true, false, false };
+		final int[] masks = { 0, 0xF, 0x5 };
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < masks.length; i++) {
+				final ChunkDataMessage cached = chunk.toMessage(skylight[i], entireChunk[i], masks[i]);
+				final Chunk fresh = copy(chunk);
+				final ChunkDataMessage expected = fresh.toMessage(skylight[i], entireChunk[i], masks[i]);
+				assertEquals(expected.getPrimaryMask(), cached.getPrimaryMask());
+				assertTrue(ByteBufUtil.equals(expected.getData(), cached.getData()));
+				fresh.releaseCache();
+			}
+
+			// A few edits in one or two sections
+			final int section = random.nextInt(4);
+			for (int j = 0; j < 5; j++) {
+				final int x = random.nextInt(Chunk.WIDTH), z = random.nextInt(Chunk.HEIGHT);
+				final int y = section * 16 + random.nextInt(16);
+				chunk.setBlock(x, y, z, random.nextInt(4), 0);
+				chunk.setBlockLight(x, z, y, random.nextInt(16));
+			}
+			chunk.setBiome(random.nextInt(Chunk.WIDTH), random.nextInt(Chunk.HEIGHT), random.nextInt(40));
+		}
+		chunk.releaseCache();
+	}
+
+	@Test
+	public void heightMapFollowsChanges() {
+		final Random random = new Random(5);
+		final Chunk chunk = createChunk(random);
+		final char[] row = new char[Chunk.WIDTH];
+		for (int round = 0; round < 500; round++) {
+			final int x = random.nextInt(Chunk.WIDTH), z = random.nextInt(Chunk.HEIGHT);
+			final int y = random.nextInt(240);
+			switch (round % 3) {
+			case 0:
+				chunk.setBlock(x, y, z, random.nextInt(2) == 0 ? 0 : 1, 0);
+				break;
+			case 1:
+				chunk.fill(0, y, 0, x, y + random.nextInt(10), z, random.nextInt(2), 0);
+				break;
+			default:
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (char) (random.nextInt(2) << 4);
+				}
+				chunk.setTypes(0, y, z, row, 0, row.length);
+				break;
+			}
+			assertHeights(chunk);
+		}
+		chunk.automaticHeightMap();
+		assertHeights(chunk);
+	}
+
+	private static void assertHeights(final Chunk chunk) {
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				int height = Chunk.DEPTH;
+				while (height > 0 && chunk.getType(x, z, height - 1) == 0) {
+					height--;
+				}
+				assertEquals(height, chunk.getHeight(x, z));
+			}
+		}
+	}
+
+	private static Chunk createChunk(final Random random) {
+		final Chunk chunk = new Chunk(null, 0, 0);
+		chunk.initializeSections();
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				for (int y = 0; y < 64; y++) {
+					chunk.setBlock(x, y, z, 1 + random.nextInt(3), 0);
+				}
+			}
+		}
+		return chunk;
+	}
+
+	private static Chunk copy(final Chunk chunk) {
+		final Chunk copy = new Chunk(null, chunk.getX(), chunk.getZ());
+		copy.initializeSections();
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				copy.setBiome(x, z, chunk.getBiome(x, z));
+				for (int y = 0; y < Chunk.DEPTH; y++) {
+					final int type = chunk.getType(x, z, y);
+					if (type != 0) {
+						copy.setBlock(x, y, z, type, chunk.getMetaData(x, z, y));
+					}
+				}
+			}
+		}
+		// Light once all sections exist, air included
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				for (int y = 0; y < Chunk.DEPTH; y++) {
+					copy.setSkyLight(x, z, y, chunk.getSkyLight(x, z, y));
+					copy.setBlockLight(x, z, y, chunk.getBlockLight(x, z, y));
+				}
+			}
+		}
+		return copy;
+	}
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * How long the light engine takes to relight a chunk as a whole and to update
+ * a single block. Run with {@code -P benchmark}.
+ */
+public class LightEngineBenchmark {
+
+	private static final Logger LOGGER = LogManager.getLogger(LightEngineBenchmark.class);
+
+	@Test
+	public void relightTime() {
+		final LightEngine engine = new LightEngine(null);
+		try {
+			final Chunk chunk = LightEngineTest.stone();
+			// Warm up before measuring
+			for (int i = 0; i < 200; i++) {
+				engine.relight(chunk);
+			}
+
+			final int relights = 1000;
+			long startTime = System.nanoTime();
+			for (int i = 0; i < relights; i++) {
+				engine.relight(chunk);
+			}
+			LOGGER.info("Light engine: full relight in {} us", (System.nanoTime() - startTime) / relights / 1000);
+
+			final int updates = 10000;
+			startTime = System.nanoTime();
+			for (int i = 0; i < updates; i++) {
+				final int x = i & 0xF;
+				final int z = (i >> 4) & 0xF;
+				chunk.setType(x, z, 39, (i & 0x100) == 0 ? 0 : 1);
+				engine.update(chunk, IntArrayList.wrap(new int[] { 39 << 8 | z << 4 | x }));
+			}
+			LOGGER.info("Light engine: single block update in {} us", (System.nanoTime() - startTime) / updates / 1000);
+			assertEquals(15, chunk.getSkyLight(5, 5, 40));
+			assertEquals(0, chunk.getSkyLight(5, 5, 0));
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Light levels computed by the light engine, both from scratch and after
+ * single block changes.
+ */
+public class LightEngineTest {
+
+	private LightEngine engine;
+
+	@Before
+	public void setUp() {
+		this.engine = new LightEngine(null);
+	}
+
+	@After
+	public void tearDown() {
+		this.engine.shutdown();
+	}
+
+	@Test
+	public void torchInsideStone() {
+		final Chunk chunk = stone();
+		chunk.setType(5, 5, 21, 0);
+		chunk.setType(5, 5, 20, 50);
+		this.engine.relight(chunk);
+
+		assertEquals(15, chunk.getSkyLight(5, 5, 40));
+		assertEquals(0, chunk.getSkyLight(5, 5, 39));
+		assertEquals(0, chunk.getSkyLight(5, 5, 21));
+		assertEquals(14, chunk.getBlockLight(5, 5, 20));
+		assertEquals(13, chunk.getBlockLight(5, 5, 21));
+		assertEquals(0, chunk.getBlockLight(5, 5, 22));
+
+		// Removing the torch must leave no light behind
+		chunk.setType(5, 5, 20, 0);
+		update(chunk, 5, 5, 20);
+		assertEquals(0, chunk.getBlockLight(5, 5, 20));
+		assertEquals(0, chunk.getBlockLight(5, 5, 21));
+	}
+
+	@Test
+	public void blockInOpenSky() {
+		final Chunk chunk = stone();
+		this.engine.relight(chunk);
+
+		// The column below only gets sky light from its sides
+		chunk.setType(5, 5, 45, 1);
+		update(chunk, 5, 5, 45);
+		assertEquals(0, chunk.getSkyLight(5, 5, 45));
+		assertEquals(14, chunk.getSkyLight(5, 5, 44));
+		assertEquals(14, chunk.getSkyLight(5, 5, 40));
+		assertEquals(15, chunk.getSkyLight(6, 5, 44));
+
+		chunk.setType(5, 5, 45, 0);
+		update(chunk, 5, 5, 45);
+		assertEquals(15, chunk.getSkyLight(5, 5, 45));
+		assertEquals(15, chunk.getSkyLight(5, 5, 44));
+		assertEquals(15, chunk.getSkyLight(5, 5, 40));
+	}
+
+	@Test
+	public void holeInRoof() {
+		final Chunk chunk = stone();
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				if (x != 5 || z != 5) {
+					chunk.setType(x, z, 45, 1);
+				}
+			}
+		}
+		this.engine.relight(chunk);
+		assertEquals(15, chunk.getSkyLight(5, 5, 40));
+		assertEquals(14, chunk.getSkyLight(6, 5, 44));
+
+		// Plugging the hole darkens everything below the roof
+		chunk.setType(5, 5, 45, 1);
+		update(chunk, 5, 5, 45);
+		assertEquals(0, chunk.getSkyLight(5, 5, 44));
+		assertEquals(0, chunk.getSkyLight(5, 5, 40));
+		assertEquals(0, chunk.getSkyLight(6, 5, 44));
+		assertEquals(15, chunk.getSkyLight(5, 5, 46));
+
+		chunk.setType(5, 5, 45, 0);
+		update(chunk, 5, 5, 45);
+		assertEquals(15, chunk.getSkyLight(5, 5, 44));
+		assertEquals(15, chunk.getSkyLight(5, 5, 40));
+		assertEquals(14, chunk.getSkyLight(6, 5, 44));
+	}
+
+	@Test
+	public void acrossSections() {
+		final Chunk chunk = stone();
+		chunk.setType(5, 5, 15, 0);
+		chunk.setType(5, 5, 16, 0);
+		chunk.setType(5, 5, 17, 0);
+		this.engine.relight(chunk);
+
+		// Placed in the lower section, lighting the upper one
+		chunk.setType(5, 5, 15, 50);
+		assertEquals(0b11, update(chunk, 5, 5, 15));
+		assertEquals(14, chunk.getBlockLight(5, 5, 15));
+		assertEquals(13, chunk.getBlockLight(5, 5, 16));
+		assertEquals(12, chunk.getBlockLight(5, 5, 17));
+
+		// Moved to the upper section, the light in the lower one must follow
+		chunk.setType(5, 5, 15, 0);
+		update(chunk, 5, 5, 15);
+		chunk.setType(5, 5, 16, 50);
+		update(chunk, 5, 5, 16);
+		assertEquals(13, chunk.getBlockLight(5, 5, 15));
+		assertEquals(14, chunk.getBlockLight(5, 5, 16));
+		assertEquals(13, chunk.getBlockLight(5, 5, 17));
+
+		chunk.setType(5, 5, 16, 0);
+		update(chunk, 5, 5, 16);
+		assertEquals(0, chunk.getBlockLight(5, 5, 15));
+		assertEquals(0, chunk.getBlockLight(5, 5, 16));
+		assertEquals(0, chunk.getBlockLight(5, 5, 17));
+	}
+
+	@Test
+	public void emptiedSectionUnderground() {
+		final Chunk chunk = stone();
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				for (int y = 16; y < 32; y++) {
+					chunk.setType(x, z, y, 0);
+				}
+			}
+		}
+		chunk.setType(5, 5, 15, 0);
+		this.engine.relight(chunk);
+
+		// The emptied section lies below the surface, no sky light comes from it
+		assertEquals(0, chunk.getSkyLight(5, 5, 15));
+		chunk.setType(5, 5, 14, 0);
+		update(chunk, 5, 5, 14);
+		assertEquals(0, chunk.getSkyLight(5, 5, 14));
+		assertEquals(0, chunk.getSkyLight(5, 5, 15));
+		assertEquals(15, chunk.getSkyLight(5, 5, 40));
+	}
+
+	private int update(final Chunk chunk, final int x, final int z, final int y) {
+		return this.engine.update(chunk, IntArrayList.wrap(new int[] { y << 8 | z << 4 | x }));
+	}
+
+	static Chunk stone() {
+		final Chunk chunk = new Chunk(null, 0, 0);
+		chunk.initializeSections();
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				for (int y = 0; y < 40; y++) {
+					chunk.setType(x, z, y, 1);
+				}
+			}
+		}
+		return chunk;
+	}
+
+}
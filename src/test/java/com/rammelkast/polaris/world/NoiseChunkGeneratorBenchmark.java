@@ -0,0 +1,52 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import static org.junit.Assert.assertTrue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * How many chunks the noise generator generates per second on a single
+ * thread. Run with {@code -P benchmark}.
+ */
+public class NoiseChunkGeneratorBenchmark {
+
+	private static final Logger LOGGER = LogManager.getLogger(NoiseChunkGeneratorBenchmark.class);
+
+	@Test
+	public void chunksPerSecond() {
+		final NoiseChunkGenerator generator = new NoiseChunkGenerator(0L);
+		// Warm up before measuring
+		for (int i = 0; i < 500; i++) {
+			NoiseChunkGeneratorTest.generate(generator, i, 0);
+		}
+
+		final int chunks = 2000;
+		long height = 0;
+		final long startTime = System.nanoTime();
+		for (int i = 0; i < chunks; i++) {
+			height += NoiseChunkGeneratorTest.generate(generator, i % 64, i / 64).getHeight(0, 0);
+		}
+		final double seconds = (System.nanoTime() - startTime) / 1000000000D;
+		assertTrue(height > 0);
+		LOGGER.info("Noise generator: {} chunks/s on one core", Math.round(chunks / seconds));
+	}
+
+}
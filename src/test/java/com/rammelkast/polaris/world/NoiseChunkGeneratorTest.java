@@ -0,0 +1,54 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Terrain of the noise generator
+ */
+public class NoiseChunkGeneratorTest {
+
+	@Test
+	public void sameSeedSameTerrain() {
+		final Chunk first = generate(new NoiseChunkGenerator(1L), 3, -7);
+		final Chunk second = generate(new NoiseChunkGenerator(1L), 3, -7);
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				final int height = first.getHeight(x, z);
+				assertEquals(height, second.getHeight(x, z));
+				assertEquals(7, first.getType(x, z, 0));
+				assertTrue(first.getType(x, z, height - 1) != 0);
+				assertEquals(0, first.getType(x, z, height));
+				for (int y = 0; y < height; y++) {
+					assertEquals(first.getType(x, z, y), second.getType(x, z, y));
+				}
+			}
+		}
+	}
+
+	static Chunk generate(final ChunkGenerator generator, final int x, final int z) {
+		final Chunk chunk = new Chunk(null, x, z);
+		chunk.initializeSections();
+		generator.generate(chunk);
+		return chunk;
+	}
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.rammelkast.polaris.world.Chunk.ChunkSection;
+
+/**
+ * Palette storage against a plain char array, and the memory used by a flat
+ * world of 1024 chunks.
+ */
+public class PalettedStorageTest {
+
+	@Test
+	public void matchesArray() {
+		final Random random = new Random(42);
+		for (final int distinct : new int[] { 1, 2, 3, 16, 17, 256, 257, 4096 }) {
+			final char[] expected = new char[PalettedStorage.SIZE];
+			final PalettedStorage storage = new PalettedStorage((char) 0);
+			for (int i = 0; i < 4 * PalettedStorage.SIZE; i++) {
+				final int index = random.nextInt(PalettedStorage.SIZE);
+				final char value = (char) (random.nextInt(distinct) << 4);
+				expected[index] = value;
+				storage.set(index, value);
+			}
+
+			for (int i = 0; i < PalettedStorage.SIZE; i++) {
+				assertEquals(expected[i], storage.get(i));
+			}
+
+			// Same wire bytes as the char array used to produce
+			final byte[] expectedBytes = new byte[PalettedStorage.SIZE * 2];
+			for (int i = 0; i < PalettedStorage.SIZE; i++) {
+				expectedBytes[i * 2] = (byte) (expected[i] & 0xff);
+				expectedBytes[i * 2 + 1] = (byte) (expected[i] >> 8);
+			}
+			final byte[] bytes = new byte[PalettedStorage.SIZE * 2];
+			assertEquals(bytes.length, storage.writeLittleEndian(bytes, 0));
+			assertArrayEquals(expectedBytes, bytes);
+			assertArrayEquals(expectedBytes, writeAll(new PalettedStorage(expected)));
+		}
+	}
+
+	@Test
+	public void fillMatchesArray() {
+		final Random random = new Random(11);
+		for (final int distinct : new int[] { 2, 17, 300 }) {
+			final char[] expected = new char[PalettedStorage.SIZE];
+			final PalettedStorage storage = new PalettedStorage((char) 0);
+			for (int i = 0; i < 200; i++) {
+				int from = random.nextInt(PalettedStorage.SIZE + 1);
+				int to = random.nextInt(PalettedStorage.SIZE + 1);
+				if (i % 50 == 0) {
+					from = 0;
+					to = PalettedStorage.SIZE;
+				}
+				final char value = (char) random.nextInt(distinct);
+				storage.fill(Math.min(from, to), Math.max(from, to), value);
+				Arrays.fill(expected, Math.min(from, to), Math.max(from, to), value);
+				final int index = random.nextInt(PalettedStorage.SIZE);
+				storage.set(index, (char) i);
+				expected[index] = (char) i;
+			}
+
+			final char[] actual = new char[PalettedStorage.SIZE];
+			storage.get(0, actual, 0, actual.length);
+			assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void flatWorldMemory() {
+		final ChunkGenerator generator = new FlatChunkGenerator();
+		long paletted = 0;
+		long arrays = 0;
+		for (int x = 0; x < 32; x++) {
+			for (int z = 0; z < 32; z++) {
+				final Chunk chunk = new Chunk(null, x, z);
+				chunk.initializeSections();
+				generator.generate(chunk);
+				for (final ChunkSection section : chunk.getSections()) {
+					if (section != null) {
+						paletted += section.getMemoryUsage();
+						final long types = ((HeapSectionStorage) section.getStorage()).getTypeMemoryUsage();
+						arrays += section.getMemoryUsage() - types + 16 + 2 * PalettedStorage.SIZE;
+					}
+				}
+			}
+		}
+		assertTrue("Section memory of 1024 flat chunks: " + (paletted / 1024) + " KB paletted, "
+				+ (arrays / 1024) + " KB as char arrays", paletted < arrays);
+	}
+
+	private static byte[] writeAll(final PalettedStorage storage) {
+		final byte[] bytes = new byte[PalettedStorage.SIZE * 2];
+		storage.writeLittleEndian(bytes, 0);
+		return bytes;
+	}
+
+}
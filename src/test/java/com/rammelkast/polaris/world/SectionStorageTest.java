@@ -0,0 +1,123 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Every section storage type against the heap storage, after the same random
+ * edits.
+ */
+public class SectionStorageTest {
+
+	@Test
+	public void directMatchesHeap() {
+		this.assertEquivalent(SectionStorage.Type.DIRECT);
+	}
+
+	private void assertEquivalent(final SectionStorage.Type type) {
+		final Random random = new Random(7);
+		final SectionStorage heap = SectionStorage.Type.HEAP.create();
+		final SectionStorage other = type.create();
+		assertSame(heap, other);
+
+		for (int i = 0; i < 3 * SectionStorage.SIZE; i++) {
+			final int index = random.nextInt(SectionStorage.SIZE);
+			final byte light = (byte) random.nextInt(16);
+			switch (random.nextInt(3)) {
+			case 0:
+				// Up to 200 distinct states, so the heap palette stays packed
+				final char value = (char) (random.nextInt(100) << 4 | random.nextInt(2));
+				heap.setType(index, value);
+				other.setType(index, value);
+				break;
+			case 1:
+				heap.setSkyLight(index, light);
+				other.setSkyLight(index, light);
+				break;
+			default:
+				heap.setBlockLight(index, light);
+				other.setBlockLight(index, light);
+				break;
+			}
+		}
+		assertSame(heap, other);
+
+		// Copies are equal, and independent of the original
+		final SectionStorage copy = other.copy();
+		other.setType(0, (char) (other.getType(0) + 1));
+		heap.setType(0, (char) (heap.getType(0) + 1));
+		assertSame(heap, other);
+		assertEquals((char) (other.getType(0) - 1), copy.getType(0));
+
+		// Created from arrays as read from disk
+		final char[] types = new char[SectionStorage.SIZE];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = heap.getType(i);
+		}
+		final byte[] skyLight = ByteBufUtil.getBytes(write(heap, 1));
+		final byte[] blockLight = ByteBufUtil.getBytes(write(heap, 2));
+		assertSame(heap, type.create(types, skyLight, blockLight));
+	}
+
+	private static void assertSame(final SectionStorage expected, final SectionStorage actual) {
+		for (int i = 0; i < SectionStorage.SIZE; i++) {
+			assertEquals(expected.getType(i), actual.getType(i));
+			assertEquals(expected.getSkyLight(i), actual.getSkyLight(i));
+			assertEquals(expected.getBlockLight(i), actual.getBlockLight(i));
+		}
+		for (int part = 0; part < 3; part++) {
+			assertArrayEquals(ByteBufUtil.getBytes(write(expected, part)), ByteBufUtil.getBytes(write(actual, part)));
+		}
+	}
+
+	/**
+	 * Writes the types (0), sky light (1) or block light (2) into a direct and
+	 * an array backed buffer, as the heap storage has a separate path for the
+	 * latter
+	 */
+	private static ByteBuf write(final SectionStorage storage, final int part) {
+		final ByteBuf direct = write(storage, part, Unpooled.directBuffer());
+		assertEquals(write(storage, part, Unpooled.buffer()), direct);
+		return direct;
+	}
+
+	private static ByteBuf write(final SectionStorage storage, final int part, final ByteBuf buffer) {
+		switch (part) {
+		case 0:
+			storage.writeTypes(buffer);
+			break;
+		case 1:
+			storage.writeSkyLight(buffer);
+			break;
+		default:
+			storage.writeBlockLight(buffer);
+			break;
+		}
+		return buffer;
+	}
+
+}
@@ -0,0 +1,80 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.rammelkast.polaris.world.Chunk;
+import com.rammelkast.polaris.world.NoiseChunkGenerator;
+
+/**
+ * How many generated chunks the anvil loader saves and loads per second on a
+ * single thread. Run with {@code -P benchmark}.
+ */
+public class AnvilChunkLoaderBenchmark {
+
+	private static final Logger LOGGER = LogManager.getLogger(AnvilChunkLoaderBenchmark.class);
+	private static final int SIZE = RegionFile.REGION_SIZE;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void chunksPerSecond() throws IOException {
+		final NoiseChunkGenerator generator = new NoiseChunkGenerator(0L);
+		final Chunk[] chunks = new Chunk[SIZE * SIZE];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new Chunk(null, i % SIZE, i / SIZE);
+			chunks[i].initializeSections();
+			generator.generate(chunks[i]);
+		}
+
+		final AnvilChunkLoader writer = new AnvilChunkLoader(this.folder.getRoot());
+		long startTime = System.nanoTime();
+		for (final Chunk chunk : chunks) {
+			writer.saveChunk(chunk);
+		}
+		writer.close();
+		final double saveSeconds = (System.nanoTime() - startTime) / 1000000000D;
+
+		final AnvilChunkLoader reader = new AnvilChunkLoader(this.folder.getRoot());
+		long height = 0;
+		startTime = System.nanoTime();
+		for (int i = 0; i < chunks.length; i++) {
+			height += reader.loadChunk(null, i % SIZE, i / SIZE).getHeight(0, 0);
+		}
+		final double loadSeconds = (System.nanoTime() - startTime) / 1000000000D;
+		reader.close();
+
+		long expectedHeight = 0;
+		for (final Chunk chunk : chunks) {
+			expectedHeight += chunk.getHeight(0, 0);
+		}
+		assertEquals(expectedHeight, height);
+		LOGGER.info("Anvil loader: {} chunks/s saved, {} chunks/s loaded", Math.round(chunks.length / saveSeconds),
+				Math.round(chunks.length / loadSeconds));
+	}
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Polaris Minecraft Server Software
+ * Copyright 2021 Marco Moesman
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.rammelkast.polaris.world.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.steveice10.opennbt.NBTIO;
+import com.github.steveice10.opennbt.tag.builtin.ByteArrayTag;
+import com.github.steveice10.opennbt.tag.builtin.ByteTag;
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.github.steveice10.opennbt.tag.builtin.ListTag;
+import com.rammelkast.polaris.world.Chunk;
+
+/**
+ * Chunks saved in the anvil format load back unchanged, and malformed chunk
+ * data is reported as an {@link IOException}.
+ */
+public class AnvilChunkLoaderTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		final Chunk chunk = new Chunk(null, 3, -2);
+		chunk.initializeSections();
+		// Types above 255 need the Add nibbles
+		chunk.setBlock(1, 2, 3, 300, 5);
+		chunk.setBlock(15, 70, 0, 4095, 15);
+		chunk.setBlock(4, 100, 9, 1, 2);
+		chunk.setSkyLight(1, 3, 2, 7);
+		chunk.setBlockLight(1, 3, 2, 12);
+		chunk.setSkyLight(15, 0, 70, 3);
+		chunk.setBlockLight(4, 9, 100, 9);
+		final int[] heightMap = new int[Chunk.WIDTH * Chunk.HEIGHT];
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				chunk.setBiome(x, z, (x * 7 + z) % 40);
+				heightMap[z * Chunk.WIDTH + x] = (x + z * 3) % 200;
+			}
+		}
+		chunk.setHeightMap(heightMap);
+		chunk.setPopulated(true);
+
+		final AnvilChunkLoader loader = new AnvilChunkLoader(this.folder.getRoot());
+		loader.saveChunk(chunk);
+		loader.close();
+
+		final AnvilChunkLoader reader = new AnvilChunkLoader(this.folder.getRoot());
+		assertNull(reader.loadChunk(null, 4, -2));
+		final Chunk loaded = reader.loadChunk(null, 3, -2);
+		reader.close();
+		assertEquals(300, loaded.getType(1, 3, 2));
+		assertEquals(5, loaded.getMetaData(1, 3, 2));
+		assertEquals(4095, loaded.getType(15, 0, 70));
+		assertTrue(loaded.isPopulated());
+		assertChunksEqual(chunk, loaded);
+	}
+
+	@Test
+	public void growingChunkMoves() throws IOException {
+		final File file = new File(this.folder.getRoot(), "r.0.0.mca");
+		final RegionFile region = new RegionFile(file);
+		final byte[] small = new byte[1000];
+		region.writeChunk(0, 0, small);
+		region.writeChunk(1, 0, small);
+
+		// Incompressible, so it no longer fits the single sector it had
+		final byte[] large = new byte[3 * 4096];
+		new Random(42).nextBytes(large);
+		region.writeChunk(0, 0, large);
+		final byte[] other = new byte[1000];
+		other[0] = 1;
+		region.writeChunk(1, 0, other);
+		region.close();
+
+		final RegionFile reopened = new RegionFile(file);
+		assertChunkData(large, reopened, 0, 0);
+		assertChunkData(other, reopened, 1, 0);
+		reopened.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void missingLight() throws IOException {
+		final CompoundTag section = new CompoundTag("");
+		section.put(new ByteTag("Y", (byte) 0));
+		section.put(new ByteArrayTag("Blocks", new byte[4096]));
+		section.put(new ByteArrayTag("Data", new byte[2048]));
+		section.put(new ByteArrayTag("BlockLight", new byte[2048]));
+		this.loadSection(section);
+	}
+
+	@Test(expected = IOException.class)
+	public void shortBlocks() throws IOException {
+		final CompoundTag section = new CompoundTag("");
+		section.put(new ByteTag("Y", (byte) 0));
+		section.put(new ByteArrayTag("Blocks", new byte[100]));
+		section.put(new ByteArrayTag("Data", new byte[2048]));
+		section.put(new ByteArrayTag("BlockLight", new byte[2048]));
+		section.put(new ByteArrayTag("SkyLight", new byte[2048]));
+		this.loadSection(section);
+	}
+
+	@Test(expected = IOException.class)
+	public void wrongTagType() throws IOException {
+		final CompoundTag section = new CompoundTag("");
+		section.put(new ByteArrayTag("Y", new byte[1]));
+		this.loadSection(section);
+	}
+
+	private void loadSection(final CompoundTag section) throws IOException {
+		final ListTag sections = new ListTag("Sections", CompoundTag.class);
+		sections.add(section);
+		final CompoundTag level = new CompoundTag("Level");
+		level.put(sections);
+		final CompoundTag root = new CompoundTag("");
+		root.put(level);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTIO.writeTag(out, root);
+
+		final File directory = new File(this.folder.getRoot(), "region");
+		directory.mkdirs();
+		final RegionFile region = new RegionFile(new File(directory, "r.0.0.mca"));
+		region.writeChunk(0, 0, out.toByteArray());
+		region.close();
+
+		final AnvilChunkLoader loader = new AnvilChunkLoader(this.folder.getRoot());
+		try {
+			loader.loadChunk(null, 0, 0);
+		} finally {
+			loader.close();
+		}
+	}
+
+	private static void assertChunkData(final byte[] expected, final RegionFile region, final int x, final int z)
+			throws IOException {
+		final byte[] actual = new byte[expected.length];
+		try (final DataInputStream in = region.readChunk(x, z)) {
+			in.readFully(actual);
+			assertEquals(-1, in.read());
+		}
+		assertArrayEquals(expected, actual);
+	}
+
+	private static void assertChunksEqual(final Chunk expected, final Chunk actual) {
+		for (int x = 0; x < Chunk.WIDTH; x++) {
+			for (int z = 0; z < Chunk.HEIGHT; z++) {
+				final String column = x + "," + z;
+				assertEquals(column, expected.getBiome(x, z), actual.getBiome(x, z));
+				assertEquals(column, expected.getHeight(x, z), actual.getHeight(x, z));
+				for (int y = 0; y < Chunk.DEPTH; y++) {
+					final String block = column + "," + y;
+					assertEquals(block, expected.getType(x, z, y), actual.getType(x, z, y));
+					assertEquals(block, expected.getMetaData(x, z, y), actual.getMetaData(x, z, y));
+					assertEquals(block, expected.getSkyLight(x, z, y), actual.getSkyLight(x, z, y));
+					assertEquals(block, expected.getBlockLight(x, z, y), actual.getBlockLight(x, z, y));
+				}
+			}
+		}
+	}
+
+}